@@ -16,26 +16,100 @@
 
 package com.worksap.nlp.elasticsearch.plugins;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
 
+import com.worksap.nlp.elasticsearch.plugins.analysis.ChikkarCache;
 import com.worksap.nlp.elasticsearch.plugins.analysis.ChikkarSynonymTokenFilterFactory;
 import com.worksap.nlp.elasticsearch.plugins.analysis.ChikkarSynonymGraphTokenFilterFactory;
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexModule;
+import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.shard.IndexEventListener;
 import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
 import org.elasticsearch.plugins.AnalysisPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
 public class AnalysisChikkarPlugin extends Plugin implements AnalysisPlugin {
 
     public static final String SYNONYM_FILTER_NAME = "chikkar_synonym";
     public static final String SYNONYM_GRAPH_FILTER_NAME = "chikkar_synonym_graph";
+    // runs synonym map builds of filters with async_build
+    public static final String BUILD_THREAD_POOL_NAME = "chikkar_synonym_build";
+
+    private final SetOnce<ThreadPool> threadPool = new SetOnce<>();
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        // a build holds a whole dictionary in memory, so only a few run at once
+        int size = Math.min(4, Math.max(1, EsExecutors.allocatedProcessors(settings) / 2));
+        return Collections.singletonList(new FixedExecutorBuilder(settings, BUILD_THREAD_POOL_NAME, size, -1,
+                "thread_pool." + BUILD_THREAD_POOL_NAME, false));
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+            ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+            NamedXContentRegistry xContentRegistry, Environment environment, NodeEnvironment nodeEnvironment,
+            NamedWriteableRegistry namedWriteableRegistry, IndexNameExpressionResolver indexNameExpressionResolver,
+            Supplier<RepositoriesService> repositoriesServiceSupplier) {
+        this.threadPool.set(threadPool);
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        // dictionary lines kept for incremental_reload are dropped with the last
+        // index using them
+        indexModule.addIndexEventListener(new IndexEventListener() {
+            @Override
+            public void afterIndexRemoved(Index index, IndexSettings indexSettings, IndexRemovalReason reason) {
+                ChikkarCache.getInstance().releaseIncrementalCache(index.getUUID());
+            }
+        });
+    }
 
     @Override
     public Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
         Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> tokenFilters = new HashMap<>();
-        tokenFilters.put(SYNONYM_FILTER_NAME, ChikkarSynonymTokenFilterFactory::new);
-        tokenFilters.put(SYNONYM_GRAPH_FILTER_NAME, ChikkarSynonymGraphTokenFilterFactory::new);
+        tokenFilters.put(SYNONYM_FILTER_NAME,
+                (indexSettings, env, name, settings) -> new ChikkarSynonymTokenFilterFactory(indexSettings, env, name,
+                        settings, buildExecutor()));
+        tokenFilters.put(SYNONYM_GRAPH_FILTER_NAME,
+                (indexSettings, env, name, settings) -> new ChikkarSynonymGraphTokenFilterFactory(indexSettings, env,
+                        name, settings, buildExecutor()));
         return tokenFilters;
     }
+
+    /**
+     * @return the executor of synonym map builds, or null before the node has
+     *         created its components, e.g. in unit tests
+     */
+    private ExecutorService buildExecutor() {
+        ThreadPool pool = threadPool.get();
+        return pool == null ? null : pool.executor(BUILD_THREAD_POOL_NAME);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,673 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.analysis;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
+import org.elasticsearch.index.analysis.AnalysisMode;
+import org.elasticsearch.index.analysis.CharFilterFactory;
+import org.elasticsearch.index.analysis.CustomAnalyzer;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.analysis.TokenizerFactory;
+
+import com.worksap.nlp.elasticsearch.plugins.chikkar.Chikkar;
+import com.worksap.nlp.elasticsearch.plugins.chikkar.EntryAnalyzer;
+import com.worksap.nlp.elasticsearch.plugins.chikkar.SudachiEntryAnalyzer;
+import com.worksap.nlp.sudachi.Tokenizer;
+
+/**
+ * The settings and the synonym map build shared by
+ * {@link ChikkarSynonymTokenFilterFactory} and
+ * {@link ChikkarSynonymGraphTokenFilterFactory}. Maps are built through the
+ * {@link ChikkarSynonymBuildService}, so filters of either type with the same
+ * dictionaries, build settings and analysis chain share one map.
+ */
+public abstract class AbstractChikkarSynonymFilterFactory extends AbstractTokenFilterFactory {
+
+    private static final Logger log = LogManager.getLogger(AbstractChikkarSynonymFilterFactory.class);
+
+    // settings which only change how a map is used or where it comes from, not the map
+    private static final Set<String> NON_MAP_SETTINGS = new HashSet<>(Arrays.asList("type", "max_paths_per_query",
+            "top_k", "min_weight", "enable_snapshot", "async_build", "build_timeout", "validation_sample_size",
+            "updateable"));
+
+    private static final String SUDACHI_TOKENIZER = "sudachi_tokenizer";
+    private static final String SUDACHI_NORMALIZED_FORM = "sudachi_normalizedform";
+    // a dictionary file named in Sudachi settings, such as "systemDict": "system_full.dic"
+    private static final Pattern SUDACHI_DICTIONARY = Pattern.compile("\"([^\"]+\\.dic)\"");
+
+    protected final boolean ignoreCase;
+    private final boolean enableDictCache;
+    private final boolean enableSnapshot;
+    private final boolean incrementalReload;
+    private final boolean updateable;
+    private final boolean preNormalized;
+    private final String tokenSeparator;
+    private final int validationSampleSize;
+    private final boolean sudachiNative;
+    private final boolean asyncBuild;
+    private final TimeValue buildTimeout;
+    private final int maxExpansions;
+    protected final int maxPathsPerQuery;
+    protected final int topK;
+    protected final float minWeight;
+    private final int expansionCacheSize;
+    private final boolean expand;
+    private final boolean enableWeights;
+    private final int transitiveDepth;
+    // the sort buffer of keys in megabytes, or 0 to sort them on heap
+    private final int buildBufferMegabytes;
+    private final String systemDictId;
+    private final String systemDictTimeStamp;
+    private final String systemDict;
+    private final List<String> userDictList;
+    protected final Settings settings;
+    protected final Settings analysisSettings;
+    protected final Environment environment;
+    protected final ExecutorService buildExecutor;
+    private final String indexUUID;
+
+    /**
+     * Constructor with argument
+     *
+     * @param indexSettings
+     *            {@link IndexSettings} of elasticsearch server
+     * @param env
+     *            {@link Environment} of elasticsearch server
+     * @param name
+     *            Name of this token filter
+     * @param settings
+     *            {@link Settings} of this token filter
+     * @param buildExecutor
+     *            the executor which builds synonyms when {@code async_build} is
+     *            set, or null to always build them on the calling thread
+     */
+    protected AbstractChikkarSynonymFilterFactory(IndexSettings indexSettings, Environment env, String name,
+            Settings settings, ExecutorService buildExecutor) {
+        super(indexSettings, name, settings);
+
+        // get the filter setting params
+        this.ignoreCase = settings.getAsBoolean("ignore_case", false);
+        this.enableDictCache = settings.getAsBoolean("enable_cache", false);
+        this.enableSnapshot = settings.getAsBoolean("enable_snapshot", false);
+        this.incrementalReload = settings.getAsBoolean("incremental_reload", false);
+        this.updateable = settings.getAsBoolean("updateable", false);
+        this.preNormalized = settings.getAsBoolean("pre_normalized", false);
+        this.tokenSeparator = settings.get("token_separator");
+        this.validationSampleSize = settings.getAsInt("validation_sample_size", 0);
+        if (validationSampleSize < 0) {
+            throw new IllegalArgumentException(
+                    "validation_sample_size must not be negative, but was " + validationSampleSize);
+        }
+        this.sudachiNative = settings.getAsBoolean("sudachi_native", true);
+        this.asyncBuild = settings.getAsBoolean("async_build", false);
+        this.buildTimeout = settings.getAsTime("build_timeout", TimeValue.timeValueSeconds(30));
+        this.maxExpansions = ChikkarSynonymMap.checkLimit("max_expansions",
+                settings.getAsInt("max_expansions", ChikkarSynonymMap.UNLIMITED));
+        this.maxPathsPerQuery = ChikkarSynonymMap.checkLimit("max_paths_per_query",
+                settings.getAsInt("max_paths_per_query", ChikkarSynonymMap.UNLIMITED));
+        this.topK = ChikkarSynonymMap.checkLimit("top_k", settings.getAsInt("top_k", ChikkarSynonymMap.UNLIMITED));
+        this.minWeight = settings.getAsFloat("min_weight", Float.NEGATIVE_INFINITY);
+        this.expansionCacheSize = settings.getAsInt("expansion_cache_size", 0);
+        this.expand = settings.getAsBoolean("expand", true);
+        this.enableWeights = settings.getAsBoolean("enable_weights", false);
+        this.transitiveDepth = settings.getAsBoolean("expand_transitive", false)
+                ? ChikkarSynonymMap.checkLimit("transitive_depth",
+                        settings.getAsInt("transitive_depth", ChikkarSynonymMap.UNLIMITED))
+                : 1;
+        final ByteSizeValue buildBufferSize = settings.getAsBytesSize("build_buffer_size", null);
+        this.buildBufferMegabytes = buildBufferSize == null ? 0
+                : ChikkarSynonymMap.checkSortBuffer("build_buffer_size", Math.max(1, buildBufferSize.getMb()));
+        this.systemDictId = settings.get("system_dict_id", "dummy_system_dict");
+        this.systemDictTimeStamp = settings.get("system_dict_timestamp", "1612927494");
+        this.systemDict = settings.get("system_dict");
+        this.userDictList = settings.getAsList("user_dict_list");
+        this.settings = settings;
+        this.analysisSettings = indexSettings.getSettings().getByPrefix("index.analysis.");
+        this.environment = env;
+        this.buildExecutor = buildExecutor;
+        this.indexUUID = indexSettings.getIndex().getUUID();
+    }
+
+    @Override
+    public AnalysisMode getAnalysisMode() {
+        // only search analyzers can be reloaded
+        return updateable ? AnalysisMode.SEARCH_TIME : AnalysisMode.ALL;
+    }
+
+    @Override
+    public TokenStream create(TokenStream tokenStream) {
+        throw new IllegalStateException(
+                "Call createPerAnalyzerSynonymFactory to specialize this factory for an analysis chain first");
+    }
+
+    @Override
+    public TokenFilterFactory getChainAwareTokenFilterFactory(TokenizerFactory tokenizer,
+            List<CharFilterFactory> charFilters, List<TokenFilterFactory> previousTokenFilters,
+            Function<String, TokenFilterFactory> allFilters) {
+        if (systemDict == null) {
+            log.error("Missing system_dict in settings. You need to set system_dict in settings.");
+            throw new IllegalArgumentException(
+                    "Missing system_dict in settings. You need to set system_dict in settings.");
+        }
+        if (userDictList.isEmpty()) {
+            log.warn("Missing user_dict_list in settings. Will only use system_dict to build synonyms.");
+        }
+
+        final String chain = preNormalized ? "" : describeChain(tokenizer, charFilters, previousTokenFilters);
+        final List<Path> dictionaries = dictionaryPaths();
+        if (incrementalReload) {
+            ChikkarCache.getInstance().retainIncrementalCache(incrementalKey(chain), indexUUID);
+        }
+        // the dictionaries are read, validated and analyzed by the build task, so
+        // that an async build does not hold up the creation of the index
+        final String key = mapSettings() + "\n" + chain + dictionaries;
+        final Future<ChikkarSynonymMap> build = ChikkarSynonymBuildService.getInstance().getOrBuild(key, () -> {
+            try {
+                List<Path> files = new ArrayList<>(dictionaries);
+                if (!preNormalized && analyzesDictionaries()) {
+                    files.addAll(chainFiles(tokenizer, charFilters, previousTokenFilters));
+                }
+                return ChikkarSynonymMapStore.fingerprint(mapSettings(), chain, files);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("failed to build synonyms", e);
+            }
+        }, fingerprint -> loadOrBuildSynonyms(
+                () -> buildEntryAnalyzer(tokenizer, charFilters, previousTokenFilters), chain, fingerprint),
+                asyncBuild ? buildExecutor : null);
+
+        final String name = name();
+        final AnalysisMode analysisMode = getAnalysisMode();
+        if (!build.isDone() && asyncBuild && buildExecutor != null) {
+            // the index is created without waiting, and the first token stream waits for the build
+            return new TokenFilterFactory() {
+                private volatile ChikkarSynonymMap synonyms;
+
+                @Override
+                public String name() {
+                    return name;
+                }
+
+                @Override
+                public AnalysisMode getAnalysisMode() {
+                    return analysisMode;
+                }
+
+                @Override
+                public TokenStream create(TokenStream tokenStream) {
+                    ChikkarSynonymMap current = synonyms;
+                    if (current == null) {
+                        current = awaitSynonyms(build, buildTimeout);
+                        synonyms = current;
+                    }
+                    return createFilter(tokenStream, current);
+                }
+            };
+        }
+
+        // may wait for the same build started by another filter, as long as building
+        // it here would take
+        final ChikkarSynonymMap synonyms = awaitSynonyms(build, null);
+        return new TokenFilterFactory() {
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public AnalysisMode getAnalysisMode() {
+                return analysisMode;
+            }
+
+            @Override
+            public TokenStream create(TokenStream tokenStream) {
+                return createFilter(tokenStream, synonyms);
+            }
+        };
+    }
+
+    /**
+     * Creates the synonym filter of this factory.
+     *
+     * @param tokenStream
+     *            the input of the filter
+     * @param synonyms
+     *            the built synonyms
+     * @return the filter, or the input if there are no synonyms
+     */
+    abstract TokenStream createFilter(TokenStream tokenStream, ChikkarSynonymMap synonyms);
+
+    /**
+     * Get the analyzer of dictionary entries for the analysis chain in front of
+     * this filter. Pre-normalized dictionaries are validated against the chain
+     * first.
+     */
+    EntryAnalyzer buildEntryAnalyzer(TokenizerFactory tokenizer, List<CharFilterFactory> charFilters,
+            List<TokenFilterFactory> tokenFilters) {
+        final EntryAnalyzer sudachi = preNormalized || !sudachiNative || !analyzesDictionaries() ? null
+                : buildSudachiEntryAnalyzer(tokenizer, charFilters, tokenFilters);
+        // pre-normalized dictionaries only need the chain to be validated, and
+        // Sudachi analyzes them without it
+        final Analyzer analyzer = (preNormalized && validationSampleSize == 0) || sudachi != null ? null
+                : buildSynonymAnalyzer(tokenizer, charFilters, tokenFilters);
+        if (preNormalized) {
+            EntryAnalyzer entryAnalyzer = EntryAnalyzer.preTokenized(tokenSeparator);
+            if (analyzer != null) {
+                validateDictionaries(analyzer, entryAnalyzer);
+            }
+            return entryAnalyzer;
+        }
+        return sudachi != null ? sudachi : EntryAnalyzer.of(analyzer);
+    }
+
+    /**
+     * @return whether dictionaries are analyzed by the analysis chain in front of
+     *         this filter, or loaded as they are
+     */
+    boolean analyzesDictionaries() {
+        return true;
+    }
+
+    Analyzer buildSynonymAnalyzer(TokenizerFactory tokenizer, List<CharFilterFactory> charFilters,
+            List<TokenFilterFactory> tokenFilters) {
+        if (!analyzesDictionaries()) {
+            return null;
+        }
+        return new CustomAnalyzer(tokenizer, charFilters.toArray(new CharFilterFactory[0]),
+                tokenFilters.stream().map(TokenFilterFactory::getSynonymFilter).toArray(TokenFilterFactory[]::new));
+    }
+
+    /**
+     * Get a {@link SudachiEntryAnalyzer} if the analysis chain is only the Sudachi
+     * tokenizer followed by the {@code sudachi_normalizedform} filter, so that
+     * dictionaries are analyzed by calling Sudachi directly.
+     *
+     * @return the Sudachi analyzer, or null if the chain is anything else
+     */
+    EntryAnalyzer buildSudachiEntryAnalyzer(TokenizerFactory tokenizer, List<CharFilterFactory> charFilters,
+            List<TokenFilterFactory> tokenFilters) {
+        if (!charFilters.isEmpty() || tokenFilters.size() != 1
+                || !SUDACHI_NORMALIZED_FORM.equals(componentType("filter", tokenFilters.get(0).name()))
+                || !SUDACHI_TOKENIZER.equals(componentType("tokenizer", tokenizer.name()))) {
+            return null;
+        }
+        Settings tokenizerSettings = analysisSettings.getByPrefix("tokenizer." + tokenizer.name() + ".");
+        // search and extended modes add tokens which the direct call does not produce
+        String mode = tokenizerSettings.get("mode", "normal");
+        if (!"normal".equals(mode)) {
+            return null;
+        }
+        Tokenizer.SplitMode splitMode;
+        try {
+            splitMode = Tokenizer.SplitMode.valueOf(tokenizerSettings.get("split_mode", "C").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            // let the tokenizer itself report it
+            return null;
+        }
+        String sudachiSettings = tokenizerSettings.get("additional_settings");
+        String settingsPath = tokenizerSettings.get("settings_path");
+        if (sudachiSettings == null && settingsPath != null) {
+            try {
+                sudachiSettings = new String(Files.readAllBytes(environment.configFile().resolve(settingsPath)),
+                        StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("failed to read Sudachi settings " + settingsPath, e);
+            }
+        }
+        String resourcesPath = environment.configFile().resolve(tokenizerSettings.get("resources_path", "sudachi"))
+                .toString();
+        return new SudachiEntryAnalyzer(resourcesPath, sudachiSettings, splitMode,
+                tokenizerSettings.getAsBoolean("discard_punctuation", true));
+    }
+
+    // components used by their name without settings are built-in ones
+    private String componentType(String type, String name) {
+        return analysisSettings.get(type + "." + name + ".type", name);
+    }
+
+    /**
+     * @return the settings of this filter which change the built map
+     */
+    Settings mapSettings() {
+        return settings.filter(key -> !NON_MAP_SETTINGS.contains(key));
+    }
+
+    /**
+     * Describes the analysis chain in front of this filter, which analyzes
+     * dictionaries: the name and the settings of each component, in order.
+     */
+    String describeChain(TokenizerFactory tokenizer, List<CharFilterFactory> charFilters,
+            List<TokenFilterFactory> tokenFilters) {
+        StringBuilder chain = new StringBuilder();
+        for (CharFilterFactory charFilter : charFilters) {
+            appendComponent(chain, "char_filter", charFilter.name());
+        }
+        appendComponent(chain, "tokenizer", tokenizer.name());
+        for (TokenFilterFactory tokenFilter : tokenFilters) {
+            appendComponent(chain, "filter", tokenFilter.name());
+        }
+        return chain.toString();
+    }
+
+    /**
+     * Lists the files which the analysis chain in front of this filter reads, so
+     * that a map is built again when they change: the files named by the
+     * {@code *_path} settings of its components, or the files directly in a
+     * directory named so, and the dictionaries of a Sudachi tokenizer.
+     */
+    List<Path> chainFiles(TokenizerFactory tokenizer, List<CharFilterFactory> charFilters,
+            List<TokenFilterFactory> tokenFilters) throws IOException {
+        Set<Path> files = new LinkedHashSet<>();
+        for (CharFilterFactory charFilter : charFilters) {
+            addComponentFiles(files, "char_filter", charFilter.name());
+        }
+        addComponentFiles(files, "tokenizer", tokenizer.name());
+        for (TokenFilterFactory tokenFilter : tokenFilters) {
+            addComponentFiles(files, "filter", tokenFilter.name());
+        }
+        return new ArrayList<>(files);
+    }
+
+    private void addComponentFiles(Set<Path> files, String type, String name) throws IOException {
+        Settings componentSettings = analysisSettings.getByPrefix(type + "." + name + ".");
+        for (String key : new TreeSet<>(componentSettings.keySet())) {
+            if (key.endsWith("_path")) {
+                addFiles(files, environment.configFile().resolve(componentSettings.get(key)));
+            }
+        }
+        if (SUDACHI_TOKENIZER.equals(componentType(type, name))) {
+            // the dictionaries are in the resources unless the settings give another path
+            Path resources = environment.configFile().resolve(componentSettings.get("resources_path", "sudachi"));
+            addFiles(files, resources);
+            String sudachiSettings = componentSettings.get("additional_settings", "");
+            String settingsPath = componentSettings.get("settings_path");
+            Path settingsFile = settingsPath == null ? null : environment.configFile().resolve(settingsPath);
+            if (settingsFile != null && Files.isRegularFile(settingsFile)) {
+                sudachiSettings += new String(Files.readAllBytes(settingsFile), StandardCharsets.UTF_8);
+            }
+            Matcher dictionary = SUDACHI_DICTIONARY.matcher(sudachiSettings);
+            while (dictionary.find()) {
+                files.add(resources.resolve(dictionary.group(1)));
+            }
+        }
+    }
+
+    // a file, or the regular files directly in a directory
+    private static void addFiles(Set<Path> files, Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            files.add(path);
+            return;
+        }
+        try (Stream<Path> children = Files.list(path)) {
+            children.filter(Files::isRegularFile).sorted().forEach(files::add);
+        }
+    }
+
+    private void appendComponent(StringBuilder chain, String type, String name) {
+        // built-in components have no settings, their name is enough
+        chain.append(type).append('[').append(name).append(']')
+                .append(analysisSettings.getByPrefix(type + "." + name + ".")).append('\n');
+    }
+
+    /**
+     * Checks that the first words of each pre-normalized dictionary are
+     * tokenized as the analysis chain would analyze them.
+     */
+    void validateDictionaries(Analyzer analyzer, EntryAnalyzer entryAnalyzer) {
+        for (Path dictionary : dictionaryPaths()) {
+            if (!Files.exists(dictionary)) {
+                continue;
+            }
+            List<String> mismatches;
+            try {
+                mismatches = Chikkar.compareAnalysis(dictionary, EntryAnalyzer.of(analyzer), entryAnalyzer,
+                        validationSampleSize, enableWeights);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("failed to validate " + dictionary, e);
+            }
+            if (!mismatches.isEmpty()) {
+                throw new IllegalArgumentException(dictionary + " is not normalized as by the analysis chain: "
+                        + mismatches.subList(0, Math.min(5, mismatches.size())));
+            }
+        }
+    }
+
+    ChikkarSynonymMap awaitSynonyms(Future<ChikkarSynonymMap> build, TimeValue timeout) {
+        try {
+            return timeout == null ? build.get() : build.get(timeout.millis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for synonyms of [" + name() + "]", e);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("synonyms of [" + name() + "] are not built after " + timeout, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalArgumentException("failed to build synonyms", e.getCause());
+        }
+    }
+
+    ChikkarSynonymMap loadOrBuildSynonyms(Supplier<EntryAnalyzer> analyzers, String chain, String fingerprint) {
+        ChikkarSynonymMapStore store = null;
+        if (enableSnapshot) {
+            store = new ChikkarSynonymMapStore(
+                    environment.dataFiles()[0].resolve(ChikkarSynonymMapStore.DIRECTORY_NAME));
+            ChikkarSynonymMap loaded = store.load(fingerprint, expansionCacheSize);
+            if (loaded != null) {
+                return loaded;
+            }
+        }
+
+        // a loaded snapshot needs no analyzer; a built map holds no resource of it,
+        // e.g. the Sudachi dictionary
+        ChikkarSynonymMap synonyms;
+        try (EntryAnalyzer analyzer = analyzers.get()) {
+            if (incrementalReload) {
+                synonyms = buildIncrementalSynonyms(analyzer, chain);
+            } else if (enableDictCache) {
+                // instances with and without weights read the same dictionary differently
+                final String cachedSystemDictKey = String.join("-", systemDictId, generateMD5Hash(systemDict),
+                        String.valueOf(enableWeights));
+                synonyms = buildUserSynonyms(analyzer, cachedSystemDictKey);
+            } else {
+                synonyms = buildUserSynonyms(analyzer);
+            }
+        }
+        if (store != null) {
+            store.save(fingerprint, synonyms);
+        }
+        return synonyms;
+    }
+
+    List<Path> dictionaryPaths() {
+        List<Path> dictionaries = new ArrayList<>();
+        dictionaries.add(environment.configFile().resolve(systemDict));
+        for (String dp : userDictList) {
+            dictionaries.add(environment.configFile().resolve(dp));
+        }
+        return dictionaries;
+    }
+
+    private ChikkarSynonymMap.Builder newMapBuilder() {
+        ChikkarSynonymMap.Builder builder = new ChikkarSynonymMap.Builder(true, ignoreCase)
+                .setMaxExpansions(maxExpansions).setExpansionCacheSize(expansionCacheSize).setExpand(expand)
+                .setTransitiveDepth(transitiveDepth);
+        if (buildBufferMegabytes > 0) {
+            builder.setOfflineSort(environment.tmpFile(), buildBufferMegabytes);
+        }
+        return builder;
+    }
+
+    /**
+     * Build synonyms from a {@link Chikkar} instance which is kept between builds
+     * of the same filter configuration, and only analyze the dictionary lines
+     * which changed since the previous build.
+     */
+    ChikkarSynonymMap buildIncrementalSynonyms(EntryAnalyzer analyzer, String chain) {
+        try {
+            final String key = incrementalKey(chain);
+            final List<Path> dictionaries = dictionaryPaths();
+            Chikkar chikkar = ChikkarCache.getInstance().getIncrementalCache(key,
+                    () -> newIncrementalChikkar(analyzer));
+            synchronized (chikkar) {
+                if (!isLoadOrderKept(chikkar.getDictionaryPaths(), dictionaries)) {
+                    // a dictionary which was missing appeared before loaded ones
+                    chikkar = newIncrementalChikkar(analyzer);
+                    ChikkarCache.getInstance().putIncrementalCache(key, chikkar);
+                }
+                for (Path dictionary : dictionaries) {
+                    int analyzed = chikkar.reloadDictionary(dictionary, analyzer);
+                    log.debug("reloaded {}, analyzed {} lines", dictionary, analyzed);
+                }
+                return newMapBuilder().setKeepRelations(true).build(chikkar);
+            }
+        } catch (Exception e) {
+            throw new IllegalArgumentException("failed to build synonyms", e);
+        }
+    }
+
+    // the filter configuration, without the contents of the dictionaries which
+    // the kept instance reloads
+    private String incrementalKey(String chain) {
+        try {
+            return ChikkarSynonymMapStore.fingerprint(mapSettings(), chain, Collections.emptyList());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("failed to build synonyms", e);
+        }
+    }
+
+    private Chikkar newIncrementalChikkar(EntryAnalyzer analyzer) {
+        Chikkar chikkar = newChikkar(analyzer);
+        chikkar.enableIncrementalReload();
+        return chikkar;
+    }
+
+    private Chikkar newChikkar(EntryAnalyzer analyzer) {
+        Chikkar chikkar = new Chikkar(analyzer);
+        if (enableWeights) {
+            chikkar.enableWeights();
+        }
+        return chikkar;
+    }
+
+    // dictionaries keep the priority of their order only if none which is not
+    // loaded yet comes before a loaded one
+    private static boolean isLoadOrderKept(List<Path> loaded, List<Path> dictionaries) {
+        int remaining = loaded.size();
+        for (Path dictionary : dictionaries) {
+            if (remaining == 0) {
+                return true;
+            }
+            if (loaded.contains(dictionary)) {
+                remaining--;
+            } else if (Files.exists(dictionary)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    ChikkarSynonymMap buildUserSynonyms(EntryAnalyzer analyzer) {
+        try {
+            Chikkar chikkarUser = newChikkar(analyzer);
+            chikkarUser.loadDictionary(environment.configFile().resolve(systemDict));
+            for (String dp : userDictList) {
+                chikkarUser.loadDictionary(environment.configFile().resolve(dp));
+            }
+            return newMapBuilder().build(chikkarUser);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("failed to build synonyms", e);
+        }
+    }
+
+    ChikkarSynonymMap buildUserSynonyms(EntryAnalyzer analyzer, String systemDictCacheKey) {
+        try {
+            Chikkar chikkarSystem = ChikkarCache.getInstance().getSystemDictCache(systemDictCacheKey);
+            if (chikkarSystem == null) {
+                chikkarSystem = newChikkar(analyzer);
+                chikkarSystem.loadDictionary(environment.configFile().resolve(systemDict));
+                ChikkarCache.getInstance().put(systemDictCacheKey, chikkarSystem, systemDictTimeStamp);
+            }
+
+            String time = ChikkarCache.getInstance().getSystemDictTimeStamp(systemDictCacheKey);
+            if (!time.equals(systemDictTimeStamp)) {
+                chikkarSystem.clear();
+                chikkarSystem = newChikkar(analyzer);
+                chikkarSystem.loadDictionary(environment.configFile().resolve(systemDict));
+                ChikkarCache.getInstance().put(systemDictCacheKey, chikkarSystem, systemDictTimeStamp);
+            }
+
+            Chikkar chikkarUser = Chikkar.clone(chikkarSystem);
+            for (String dp : userDictList) {
+                // the analyzer of the cached instance is closed after its build
+                chikkarUser.loadDictionary(environment.configFile().resolve(dp), analyzer);
+            }
+            return newMapBuilder().build(chikkarUser);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("failed to build synonyms", e);
+        }
+    }
+
+    String generateMD5Hash(String value) {
+        try {
+            if (value == null) {
+                return "";
+            }
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            return new String(digest.digest(), StandardCharsets.UTF_8);
+        } catch (NoSuchAlgorithmException e) {
+            log.error("NoSuchAlgorithmException for MD5");
+            return "dummy-md5-hash";
+        }
+    }
+}
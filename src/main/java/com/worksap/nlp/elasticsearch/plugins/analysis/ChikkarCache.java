@@ -19,7 +19,11 @@ package com.worksap.nlp.elasticsearch.plugins.analysis;
 import com.worksap.nlp.elasticsearch.plugins.chikkar.Chikkar;
 
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
 
 public class ChikkarCache {
 
@@ -27,10 +31,16 @@ public class ChikkarCache {
 
     private Map<String, Chikkar> systemDictCache;
     private Map<String, String> systemDictTimeStamp;
+    // instances are kept until the last index using them is removed from the node
+    private Map<String, Chikkar> incrementalCache;
+    // uuids of the indices using each configuration
+    private Map<String, Set<String>> incrementalUsers;
 
     private ChikkarCache() {
         this.systemDictCache = new HashMap<>();
         this.systemDictTimeStamp = new HashMap<>();
+        this.incrementalCache = new HashMap<>();
+        this.incrementalUsers = new HashMap<>();
     }
 
     public static synchronized ChikkarCache getInstance() {
@@ -53,4 +63,63 @@ public class ChikkarCache {
         return systemDictTimeStamp.get(key);
     }
 
+    /**
+     * Get the Chikkar instance whose dictionaries are reloaded incrementally for
+     * a filter configuration, creating it if absent. An instance is only kept
+     * while an index uses the configuration, see
+     * {@link #retainIncrementalCache(String, String)}.
+     *
+     * @param key
+     *            the fingerprint of the filter configuration
+     * @param factory
+     *            creates the instance if there is none for the key
+     * @return the cached instance
+     */
+    public synchronized Chikkar getIncrementalCache(String key, Supplier<Chikkar> factory) {
+        Chikkar chikkar = incrementalCache.get(key);
+        if (chikkar == null) {
+            chikkar = factory.get();
+            putIncrementalCache(key, chikkar);
+        }
+        return chikkar;
+    }
+
+    public synchronized void putIncrementalCache(String key, Chikkar value) {
+        // the indices may have been removed while the instance was loaded
+        if (incrementalUsers.containsKey(key)) {
+            incrementalCache.put(key, value);
+        }
+    }
+
+    /**
+     * Record that an index uses a filter configuration, so that its instance is
+     * kept for the next build, e.g. when the search analyzers of the index are
+     * reloaded.
+     *
+     * @param key
+     *            the fingerprint of the filter configuration
+     * @param index
+     *            the uuid of the index
+     */
+    public synchronized void retainIncrementalCache(String key, String index) {
+        incrementalUsers.computeIfAbsent(key, k -> new HashSet<>()).add(index);
+    }
+
+    /**
+     * Drop the instances which were only used by an index, after the index is
+     * closed, deleted or moved off the node.
+     *
+     * @param index
+     *            the uuid of the index
+     */
+    public synchronized void releaseIncrementalCache(String index) {
+        for (Iterator<Set<String>> it = incrementalUsers.values().iterator(); it.hasNext();) {
+            Set<String> users = it.next();
+            if (users.remove(index) && users.isEmpty()) {
+                it.remove();
+            }
+        }
+        incrementalCache.keySet().retainAll(incrementalUsers.keySet());
+    }
+
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.analysis;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Builds the {@link ChikkarSynonymMap}s of all chikkar synonym filters of a
+ * node. Filters with the same fingerprint, see
+ * {@link ChikkarSynonymMapStore#fingerprint(Settings, String, List)}, share one
+ * map, whatever their type and index, as long as any filter uses it.
+ * <p>
+ * The fingerprint covers the content of the dictionaries, so it is computed by
+ * the build task rather than by the caller. Builds in progress are shared by a
+ * key which only names what is built, such as the settings and the paths of the
+ * dictionaries; a build started for a key which finds a map with its
+ * fingerprint takes that map.
+ */
+public final class ChikkarSynonymBuildService {
+
+    private static final ChikkarSynonymBuildService INSTANCE = new ChikkarSynonymBuildService();
+
+    // by key
+    private final Map<String, CompletableFuture<ChikkarSynonymMap>> building = new HashMap<>();
+    // by fingerprint; maps are not kept after their filters are gone, e.g. when
+    // indices are closed
+    private final Map<String, WeakReference<ChikkarSynonymMap>> built = new HashMap<>();
+
+    ChikkarSynonymBuildService() {
+    }
+
+    public static ChikkarSynonymBuildService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the map with the fingerprint of the given key, building it if there is
+     * none.
+     *
+     * @param key
+     *            the key of the build, shared by builds whose fingerprints differ
+     *            only in the content of dictionaries
+     * @param fingerprint
+     *            computes the fingerprint of the map; called by the build task
+     * @param build
+     *            builds the map with the given fingerprint; called at most once at
+     *            a time for a key
+     * @param executor
+     *            the executor which runs the build, or null to run it on the
+     *            calling thread
+     * @return the future of the map, completed unless the build runs on the
+     *         executor or on another thread
+     */
+    public CompletableFuture<ChikkarSynonymMap> getOrBuild(String key, Supplier<String> fingerprint,
+            Function<String, ChikkarSynonymMap> build, Executor executor) {
+        final CompletableFuture<ChikkarSynonymMap> future;
+        synchronized (this) {
+            CompletableFuture<ChikkarSynonymMap> running = building.get(key);
+            if (running != null) {
+                return running;
+            }
+            future = new CompletableFuture<>();
+            building.put(key, future);
+        }
+
+        Runnable task = () -> {
+            ChikkarSynonymMap synonyms;
+            try {
+                String print = fingerprint.get();
+                synonyms = get(print);
+                if (synonyms == null) {
+                    synonyms = build.apply(print);
+                    put(print, synonyms);
+                }
+            } catch (RuntimeException e) {
+                // a failed build is not kept, so the next filter tries again
+                done(key);
+                future.completeExceptionally(e);
+                return;
+            }
+            done(key);
+            future.complete(synonyms);
+        };
+        if (executor == null) {
+            task.run();
+        } else {
+            try {
+                executor.execute(task);
+            } catch (RuntimeException e) {
+                done(key);
+                future.completeExceptionally(e);
+            }
+        }
+        return future;
+    }
+
+    private synchronized ChikkarSynonymMap get(String fingerprint) {
+        built.values().removeIf(ref -> ref.get() == null);
+        WeakReference<ChikkarSynonymMap> ref = built.get(fingerprint);
+        return ref == null ? null : ref.get();
+    }
+
+    private synchronized void put(String fingerprint, ChikkarSynonymMap synonyms) {
+        built.put(fingerprint, new WeakReference<>(synonyms));
+    }
+
+    private synchronized void done(String key) {
+        building.remove(key);
+    }
+}
@@ -17,9 +17,7 @@
 package com.worksap.nlp.elasticsearch.plugins.analysis;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Iterator;
 
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
@@ -29,6 +27,8 @@ import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Attribute;
 import org.apache.lucene.util.AttributeSource;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.CharsRefBuilder;
@@ -45,14 +45,31 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
     private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
 
     private final ChikkarSynonymMap synonyms;
+    // Whether input is folded with Character#toLowerCase for matching:
     private final boolean ignoreCase;
+    private final int maxPathsPerQuery;
+    // Shared cache of first token walks, or null when not used:
+    private final ExpansionCache expansionCache;
+    private final int topK;
+    private final float minWeight;
+    // Number of paths through the synonyms added so far in this stream:
+    private long queryPaths = 1;
 
     private final FST<BytesRef> fst;
 
     private final FST.BytesReader fstReader;
     private final FST.Arc<BytesRef> scratchArc;
     private final ByteArrayDataInput bytesReader = new ByteArrayDataInput();
-    private final LinkedList<ChikkarSynonymGraphTokenFilter.BufferedOutputToken> outputBuffer = new LinkedList<>();
+
+    // Ring of reusable output tokens; outputCount slots starting at outputHead are
+    // pending. The length is always a power of 2:
+    private BufferedOutputToken[] outputBuffer = newOutputBuffer(8);
+    private int outputHead;
+    private int outputCount;
+
+    // Scratch space for the synonym words of the current match:
+    private CharSequence[] pathWords = new CharSequence[8];
+    private int[] pathLengths = new int[8];
 
     private int nextNodeOut;
     private int lastNodeOut;
@@ -68,22 +85,21 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
     private int lookaheadNextRead;
     private int lookaheadNextWrite;
 
-    private RollingBuffer<ChikkarSynonymGraphTokenFilter.BufferedInputToken> lookahead = new RollingBuffer<ChikkarSynonymGraphTokenFilter.BufferedInputToken>() {
-        @Override
-        protected ChikkarSynonymGraphTokenFilter.BufferedInputToken newInstance() {
-            return new ChikkarSynonymGraphTokenFilter.BufferedInputToken();
-        }
-    };
+    private RollingBuffer<ChikkarSynonymGraphTokenFilter.BufferedInputToken> lookahead = newLookahead();
+    // Number of attributes when the lookahead slots were created; the copies kept
+    // in the slots must have the same attributes as this filter:
+    private int lookaheadAttributeCount = -1;
 
     static class BufferedInputToken implements RollingBuffer.Resettable {
         final CharsRefBuilder term = new CharsRefBuilder();
-        AttributeSource.State state;
+        // Copy of the token's attributes. It is cloned once per slot and then
+        // overwritten by each capture, instead of cloning a new State per token:
+        AttributeSource attributes;
         int startOffset = -1;
         int endOffset = -1;
 
         @Override
         public void reset() {
-            state = null;
             term.clear();
 
             // Intentionally invalid to ferret out bugs:
@@ -92,20 +108,25 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
         }
     }
 
+    /**
+     * A pending output token. Synonym tokens refer to a slice of the synonym word
+     * instead of holding a copy of it, and the slots are reused for every match.
+     */
     static class BufferedOutputToken {
-        final String term;
-
         // Non-null if this was an incoming token:
-        final State state;
+        AttributeSource attributes;
 
-        final int startNode;
-        final int endNode;
+        // The synonym word and the slice of this token in it:
+        CharSequence word;
+        int offset;
+        int length;
 
-        public BufferedOutputToken(State state, String term, int startNode, int endNode) {
-            this.state = state;
-            this.term = term;
-            this.startNode = startNode;
-            this.endNode = endNode;
+        int startNode;
+        int endNode;
+
+        void clear() {
+            attributes = null;
+            word = null;
         }
     }
 
@@ -118,10 +139,58 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
      * @param synonyms
      *            {@link ChikkarSynonymMap} for synonym matching
      * @param ignoreCase
-     *            boolean value to indicate if need to ignore case for synonyms
+     *            boolean value to indicate if need to ignore case for synonyms.
+     *            Input is always folded when the map was built with
+     *            {@code ignoreCase}
      */
     public ChikkarSynonymGraphTokenFilter(TokenStream input, ChikkarSynonymMap synonyms, boolean ignoreCase) {
+        this(input, synonyms, ignoreCase, ChikkarSynonymMap.UNLIMITED);
+    }
+
+    /**
+     * Constructor with arguments
+     *
+     * @param input
+     *            input tokenstream
+     * @param synonyms
+     *            synonym map
+     * @param ignoreCase
+     *            boolean value to indicate if need to ignore case for synonyms
+     * @param maxPathsPerQuery
+     *            the maximum number of paths through the synonyms of a stream, or
+     *            {@link ChikkarSynonymMap#UNLIMITED}
+     */
+    public ChikkarSynonymGraphTokenFilter(TokenStream input, ChikkarSynonymMap synonyms, boolean ignoreCase,
+            int maxPathsPerQuery) {
+        this(input, synonyms, ignoreCase, maxPathsPerQuery, ChikkarSynonymMap.UNLIMITED, Float.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Constructor with arguments
+     *
+     * @param input
+     *            input tokenstream
+     * @param synonyms
+     *            synonym map
+     * @param ignoreCase
+     *            boolean value to indicate if need to ignore case for synonyms
+     * @param maxPathsPerQuery
+     *            the maximum number of paths through the synonyms of a stream, or
+     *            {@link ChikkarSynonymMap#UNLIMITED}. Each match multiplies the
+     *            paths by the number of its synonyms plus one, and synonyms which
+     *            exceed the limit are dropped in dictionary priority order.
+     * @param topK
+     *            the maximum number of synonyms emitted for a match, strongest
+     *            first, or {@link ChikkarSynonymMap#UNLIMITED}
+     * @param minWeight
+     *            synonyms with a smaller weight are not emitted
+     */
+    public ChikkarSynonymGraphTokenFilter(TokenStream input, ChikkarSynonymMap synonyms, boolean ignoreCase,
+            int maxPathsPerQuery, int topK, float minWeight) {
         super(input);
+        this.maxPathsPerQuery = ChikkarSynonymMap.checkLimit("max_paths_per_query", maxPathsPerQuery);
+        this.topK = ChikkarSynonymMap.checkLimit("top_k", topK);
+        this.minWeight = minWeight;
         this.synonyms = synonyms;
         this.fst = synonyms.fst;
         if (fst == null) {
@@ -129,12 +198,15 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
         }
         this.fstReader = fst.getBytesReader();
         scratchArc = new FST.Arc<>();
-        this.ignoreCase = ignoreCase;
+        this.ignoreCase = ignoreCase || synonyms.ignoreCase;
+        // The cache holds walks folded as the map's keys, so it only serves filters
+        // which fold input the same way:
+        this.expansionCache = !ignoreCase || synonyms.ignoreCase ? synonyms.expansionCache : null;
     }
 
     @Override
     public boolean incrementToken() throws IOException {
-        if (!outputBuffer.isEmpty()) {
+        if (outputCount > 0) {
             // We still have pending outputs from a prior synonym match:
             releaseBufferedToken();
             return true;
@@ -168,7 +240,7 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
             BufferedInputToken token = lookahead.get(lookaheadNextRead);
             lookaheadNextRead++;
 
-            restoreState(token.state);
+            token.attributes.copyTo(this);
             lookahead.freeBefore(lookaheadNextRead);
         }
 
@@ -179,14 +251,16 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
     }
 
     private void releaseBufferedToken() {
-        BufferedOutputToken token = outputBuffer.pollFirst();
+        BufferedOutputToken token = outputBuffer[outputHead];
+        outputHead = (outputHead + 1) & (outputBuffer.length - 1);
+        outputCount--;
 
-        if (token.state != null) {
+        if (token.attributes != null) {
             // This is an original input token (keepOrig=true case):
-            restoreState(token.state);
+            token.attributes.copyTo(this);
         } else {
             clearAttributes();
-            termAtt.append(token.term);
+            termAtt.append(token.word, token.offset, token.offset + token.length);
 
             // We better have a match already:
             offsetAtt.setOffset(matchStartOffset, matchEndOffset);
@@ -196,6 +270,55 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
         posIncrAtt.setPositionIncrement(token.startNode - lastNodeOut);
         lastNodeOut = token.startNode;
         posLenAtt.setPositionLength(token.endNode - token.startNode);
+        token.clear();
+    }
+
+    private static BufferedOutputToken[] newOutputBuffer(int size) {
+        BufferedOutputToken[] buffer = new BufferedOutputToken[size];
+        for (int i = 0; i < size; i++) {
+            buffer[i] = new BufferedOutputToken();
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns the i-th pending output token.
+     */
+    private BufferedOutputToken outputAt(int i) {
+        return outputBuffer[(outputHead + i) & (outputBuffer.length - 1)];
+    }
+
+    /**
+     * Appends a pending output token, doubling the ring when it is full.
+     */
+    private void addOutput(AttributeSource attributes, CharSequence word, int offset, int length, int startNode,
+            int endNode) {
+        if (outputCount == outputBuffer.length) {
+            BufferedOutputToken[] next = new BufferedOutputToken[outputBuffer.length << 1];
+            for (int i = 0; i < outputCount; i++) {
+                next[i] = outputAt(i);
+            }
+            for (int i = outputCount; i < next.length; i++) {
+                next[i] = new BufferedOutputToken();
+            }
+            outputBuffer = next;
+            outputHead = 0;
+        }
+        BufferedOutputToken token = outputAt(outputCount++);
+        token.attributes = attributes;
+        token.word = word;
+        token.offset = offset;
+        token.length = length;
+        token.startNode = startNode;
+        token.endNode = endNode;
+    }
+
+    private static int indexOfSeparator(CharSequence word, int from) {
+        int i = from;
+        while (i < word.length() && word.charAt(i) != ChikkarSynonymMap.WORD_SEPARATOR) {
+            i++;
+        }
+        return i;
     }
 
     /**
@@ -264,10 +387,41 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
 
             // Run each char in this token through the FST:
             int bufUpto = 0;
+            // Whether the walk of this token goes to the expansion cache:
+            boolean cacheWalk = false;
+            if (matchLength == 1 && bufferLen > 0) {
+                // Most tokens can not start any key and stop here without touching
+                // the FST or the expansion cache:
+                final int firstCodePoint = Character.codePointAt(buffer, 0, bufferLen);
+                final int firstLabel = ignoreCase ? Character.toLowerCase(firstCodePoint) : firstCodePoint;
+                if (!synonyms.mayStartKey(firstLabel)) {
+                    break;
+                }
+                final ExpansionCache.Entry cached = expansionCache == null ? null
+                        : expansionCache.get(buffer, bufferLen);
+                if (cached != null) {
+                    // The walk of a frequent first token is cached:
+                    if (!cached.isMatch()) {
+                        break;
+                    }
+                    cached.copyArcTo(scratchArc);
+                    pendingOutput = cached.output();
+                    bufUpto = bufferLen;
+                } else {
+                    cacheWalk = expansionCache != null;
+                    // First hop from the root:
+                    synonyms.findRootArc(firstLabel, scratchArc, fstReader);
+                    pendingOutput = fst.outputs.add(pendingOutput, scratchArc.output());
+                    bufUpto += Character.charCount(firstCodePoint);
+                }
+            }
             while (bufUpto < bufferLen) {
                 final int codePoint = Character.codePointAt(buffer, bufUpto, bufferLen);
                 if (fst.findTargetArc(ignoreCase ? Character.toLowerCase(codePoint) : codePoint, scratchArc, scratchArc,
                         fstReader) == null) {
+                    if (cacheWalk) {
+                        expansionCache.putNoMatch(buffer, bufferLen);
+                    }
                     break byToken;
                 }
 
@@ -275,6 +429,9 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
                 pendingOutput = fst.outputs.add(pendingOutput, scratchArc.output());
                 bufUpto += Character.charCount(codePoint);
             }
+            if (cacheWalk) {
+                expansionCache.put(buffer, bufferLen, scratchArc, pendingOutput);
+            }
 
             // OK, entire token matched; now see if this is a final
             // state in the FST (a match):
@@ -349,26 +506,37 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
         }
 
         // How many synonyms we will insert over this match:
-        final int count = code >>> 1;
+        final boolean weighted = (code & ChikkarSynonymMap.OUTPUT_WEIGHTED) != 0;
+        // A canonical word replaces the input without adding a path, and is never
+        // dropped, as nothing would be left of the match
+        final int count = keepOrig
+                ? limitExpansions(ChikkarSynonymMap.countSelectedOutputs(bytesReader,
+                        code >>> ChikkarSynonymMap.OUTPUT_COUNT_SHIFT, weighted, topK, minWeight))
+                : code >>> ChikkarSynonymMap.OUTPUT_COUNT_SHIFT;
 
         // TODO: we could encode this instead into the FST:
         // 1st pass: count how many new nodes we need
-        List<List<String>> paths = new ArrayList<>();
+        if (count > pathWords.length) {
+            pathWords = ArrayUtil.grow(pathWords, count);
+            pathLengths = ArrayUtil.grow(pathLengths, count);
+        }
         for (int outputIDX = 0; outputIDX < count; outputIDX++) {
             int wordID = bytesReader.readVInt();
-            char[] scratchChars = synonyms.chikkar.getWordsFromId(wordID).get(0).toCharArray();
-
-            int lastStart = 0;
-            List<String> path = new ArrayList<>();
-            paths.add(path);
-            int chEnd = scratchChars.length;
-            for (int chUpto = 0; chUpto <= chEnd; chUpto++) {
-                if (chUpto == chEnd || scratchChars[chUpto] == ChikkarSynonymMap.WORD_SEPARATOR) {
-                    path.add(new String(scratchChars, lastStart, chUpto - lastStart));
-                    lastStart = 1 + chUpto;
+            if (weighted) {
+                // skip the weight
+                bytesReader.readInt();
+            }
+            CharSequence word = synonyms.getWord(wordID);
+
+            int pathLength = 1;
+            for (int chUpto = 0; chUpto < word.length(); chUpto++) {
+                if (word.charAt(chUpto) == ChikkarSynonymMap.WORD_SEPARATOR) {
+                    pathLength++;
                 }
             }
-            totalPathNodes += path.size() - 1;
+            pathWords[outputIDX] = word;
+            pathLengths[outputIDX] = pathLength;
+            totalPathNodes += pathLength - 1;
         }
 
         // 2nd pass: buffer tokens for the graph fragment
@@ -385,16 +553,17 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
 
         // First, fanout all tokens departing start node for these new side paths:
         int newNodeCount = 0;
-        for (List<String> path : paths) {
+        for (int pathID = 0; pathID < count; pathID++) {
             int pathEndNode;
-            if (path.size() == 1) {
+            if (pathLengths[pathID] == 1) {
                 // Single token output, so there are no intermediate nodes:
                 pathEndNode = endNode;
             } else {
                 pathEndNode = nextNodeOut + newNodeCount + 1;
-                newNodeCount += path.size() - 1;
+                newNodeCount += pathLengths[pathID] - 1;
             }
-            outputBuffer.add(new BufferedOutputToken(null, path.get(0), startNode, pathEndNode));
+            CharSequence word = pathWords[pathID];
+            addOutput(null, word, 0, indexOfSeparator(word, 0), startNode, pathEndNode);
         }
 
         // We must do the original tokens last, else the offsets "go backwards":
@@ -408,34 +577,39 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
                 inputEndNode = nextNodeOut + newNodeCount + 1;
             }
 
-            outputBuffer.add(new BufferedOutputToken(token.state, token.term.toString(), startNode, inputEndNode));
+            addOutput(token.attributes, null, 0, 0, startNode, inputEndNode);
         }
 
         nextNodeOut = endNode;
 
         // Do full side-path for each syn output:
-        for (int pathID = 0; pathID < paths.size(); pathID++) {
-            List<String> path = paths.get(pathID);
-            if (path.size() > 1) {
-                int lastNode = outputBuffer.get(pathID).endNode;
-                for (int i = 1; i < path.size() - 1; i++) {
-                    outputBuffer.add(new BufferedOutputToken(null, path.get(i), lastNode, lastNode + 1));
-                    lastNode++;
+        for (int pathID = 0; pathID < count; pathID++) {
+            int pathLength = pathLengths[pathID];
+            if (pathLength > 1) {
+                CharSequence word = pathWords[pathID];
+                int lastNode = outputAt(pathID).endNode;
+                int tokenStart = indexOfSeparator(word, 0) + 1;
+                for (int i = 1; i < pathLength; i++) {
+                    int tokenEnd = indexOfSeparator(word, tokenStart);
+                    int nextNode = i == pathLength - 1 ? endNode : lastNode + 1;
+                    addOutput(null, word, tokenStart, tokenEnd - tokenStart, lastNode, nextNode);
+                    lastNode = nextNode;
+                    tokenStart = tokenEnd + 1;
                 }
-                outputBuffer.add(new BufferedOutputToken(null, path.get(path.size() - 1), lastNode, endNode));
             }
+            pathWords[pathID] = null;
         }
 
         if (keepOrig && matchInputLength > 1) {
             // Do full "side path" with the original tokens:
-            int lastNode = outputBuffer.get(paths.size()).endNode;
+            int lastNode = outputAt(count).endNode;
             for (int i = 1; i < matchInputLength - 1; i++) {
                 BufferedInputToken token = lookahead.get(lookaheadNextRead + i);
-                outputBuffer.add(new BufferedOutputToken(token.state, token.term.toString(), lastNode, lastNode + 1));
+                addOutput(token.attributes, null, 0, 0, lastNode, lastNode + 1);
                 lastNode++;
             }
             BufferedInputToken token = lookahead.get(lookaheadNextRead + matchInputLength - 1);
-            outputBuffer.add(new BufferedOutputToken(token.state, token.term.toString(), lastNode, endNode));
+            addOutput(token.attributes, null, 0, 0, lastNode, endNode);
         }
     }
 
@@ -447,16 +621,57 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
         BufferedInputToken token = lookahead.get(lookaheadNextWrite);
         lookaheadNextWrite++;
 
-        token.state = captureState();
+        if (token.attributes == null) {
+            token.attributes = cloneAttributes();
+        } else {
+            copyTo(token.attributes);
+        }
         token.startOffset = offsetAtt.startOffset();
         token.endOffset = offsetAtt.endOffset();
         token.term.append(termAtt);
     }
 
+    private static RollingBuffer<ChikkarSynonymGraphTokenFilter.BufferedInputToken> newLookahead() {
+        return new RollingBuffer<ChikkarSynonymGraphTokenFilter.BufferedInputToken>() {
+            @Override
+            protected ChikkarSynonymGraphTokenFilter.BufferedInputToken newInstance() {
+                return new ChikkarSynonymGraphTokenFilter.BufferedInputToken();
+            }
+        };
+    }
+
+    private int countAttributes() {
+        int count = 0;
+        for (Iterator<Class<? extends Attribute>> it = getAttributeClassesIterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns how many of the synonyms of a match can be added without exceeding
+     * maxPathsPerQuery, and counts the paths they add.
+     */
+    private int limitExpansions(int count) {
+        if (maxPathsPerQuery == ChikkarSynonymMap.UNLIMITED) {
+            return count;
+        }
+        final int limited = (int) Math.max(0, Math.min(count, maxPathsPerQuery / queryPaths - 1));
+        queryPaths *= limited + 1;
+        return limited;
+    }
+
     @Override
     public void reset() throws IOException {
         super.reset();
+        queryPaths = 1;
         lookahead.reset();
+        final int attributeCount = countAttributes();
+        if (attributeCount != lookaheadAttributeCount) {
+            // Attributes were added since the slots copied them; start over:
+            lookahead = newLookahead();
+            lookaheadAttributeCount = attributeCount;
+        }
         lookaheadNextWrite = 0;
         lookaheadNextRead = 0;
         lastNodeOut = -1;
@@ -465,7 +680,11 @@ public final class ChikkarSynonymGraphTokenFilter extends TokenFilter {
         matchEndOffset = -1;
         finished = false;
         liveToken = false;
-        outputBuffer.clear();
+        for (int i = 0; i < outputCount; i++) {
+            outputAt(i).clear();
+        }
+        outputHead = 0;
+        outputCount = 0;
     }
 
 }
@@ -17,15 +17,35 @@
 package com.worksap.nlp.elasticsearch.plugins.analysis;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import com.worksap.nlp.elasticsearch.plugins.chikkar.Chikkar;
+import com.worksap.nlp.elasticsearch.plugins.chikkar.ChikkarSnapshot;
+import com.worksap.nlp.elasticsearch.plugins.chikkar.RelationManager;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ByteArrayDataInput;
 import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.InPlaceMergeSorter;
 import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.OfflineSorter;
 import org.apache.lucene.util.fst.ByteSequenceOutputs;
 import org.apache.lucene.util.fst.FST;
 import org.apache.lucene.util.fst.Util;
@@ -33,19 +53,358 @@ import org.apache.lucene.util.fst.Util;
 public class ChikkarSynonymMap {
     // for multiword support, you must separate words with this separator
     public static final char WORD_SEPARATOR = '\0';
+    /** value of limits such as max_expansions which means no limit */
+    public static final int UNLIMITED = -1;
+    /**
+     * An output starts with a VInt header: the number of synonyms shifted by
+     * {@link #OUTPUT_COUNT_SHIFT}, {@link #OUTPUT_WEIGHTED} when the synonyms have
+     * weights, and {@link #OUTPUT_REPLACE} unless the original token is kept. It is
+     * followed by the id of each synonym, and its weight as float bits if weighted.
+     * Weighted synonyms are sorted by descending weight.
+     */
+    public static final int OUTPUT_REPLACE = 0x1;
+    public static final int OUTPUT_WEIGHTED = 0x2;
+    public static final int OUTPUT_COUNT_SHIFT = 2;
+    /**
+     * Order of keys added to the FST, which takes keys as code points. It differs
+     * from {@link String#compareTo(String)} for supplementary characters.
+     */
+    public static final Comparator<String> CODE_POINT_ORDER = ChikkarSynonymMap::compareCodePoints;
+    /** holds the words of outputs, or null if the map was loaded from a snapshot */
     public final Chikkar chikkar;
+    // words of outputs indexed by id, when there is no chikkar
+    private final String[] words;
     public final FST<BytesRef> fst;
-    /** maxHorizontalContext: maximum context we need on the tokenstream */
+    /**
+     * maxHorizontalContext: maximum context we need on the tokenstream, the most
+     * tokens of a key or of a synonym
+     */
     public final int maxHorizontalContext;
+    /** ignoreCase: keys are case-folded, so input must be folded for matching */
+    public final boolean ignoreCase;
+    /** cache shared by the filters using this map, or null if disabled */
+    public final ExpansionCache expansionCache;
+    /** code points which some key starts with, i.e. the labels of root arcs */
+    private final BitSet keyStarts;
+    // root arcs for labels in [CACHED_ROOT_ARC_MIN, CACHED_ROOT_ARC_MAX], trimmed to
+    // the labels actually used, indexed by label - rootArcsBase
+    private final FST.Arc<BytesRef>[] rootArcs;
+    private final int rootArcsBase;
+
+    // kana and CJK unified ideographs (with extension A), where most keys start
+    private static final int CACHED_ROOT_ARC_MIN = 0x3040;
+    private static final int CACHED_ROOT_ARC_MAX = 0x9FFF;
 
     public ChikkarSynonymMap(Chikkar chikkar, FST<BytesRef> fst, int maxHorizontalContext) {
+        this(chikkar, fst, maxHorizontalContext, false);
+    }
+
+    public ChikkarSynonymMap(Chikkar chikkar, FST<BytesRef> fst, int maxHorizontalContext, boolean ignoreCase) {
+        this(chikkar, fst, maxHorizontalContext, ignoreCase, 0);
+    }
+
+    /**
+     * Constructor with arguments
+     *
+     * @param chikkar
+     *            the {@link Chikkar} instance which holds the words
+     * @param fst
+     *            the FST of keys to outputs
+     * @param maxHorizontalContext
+     *            maximum number of tokens in a key
+     * @param ignoreCase
+     *            whether keys are case-folded
+     * @param expansionCacheSize
+     *            the number of entries of the {@link ExpansionCache}, 0 to disable
+     *            it
+     */
+    public ChikkarSynonymMap(Chikkar chikkar, FST<BytesRef> fst, int maxHorizontalContext, boolean ignoreCase,
+            int expansionCacheSize) {
+        this(chikkar, null, fst, maxHorizontalContext, ignoreCase, expansionCacheSize);
+    }
+
+    /**
+     * Constructor for a map loaded by {@link ChikkarSynonymMapStore}, which has no
+     * {@link Chikkar} instance.
+     *
+     * @param words
+     *            the words of outputs indexed by id
+     */
+    ChikkarSynonymMap(String[] words, FST<BytesRef> fst, int maxHorizontalContext, boolean ignoreCase,
+            int expansionCacheSize) {
+        this(null, words, fst, maxHorizontalContext, ignoreCase, expansionCacheSize);
+    }
+
+    private ChikkarSynonymMap(Chikkar chikkar, String[] words, FST<BytesRef> fst, int maxHorizontalContext,
+            boolean ignoreCase, int expansionCacheSize) {
         this.chikkar = chikkar;
+        this.words = words;
         this.fst = fst;
         this.maxHorizontalContext = maxHorizontalContext;
+        this.ignoreCase = ignoreCase;
+        this.expansionCache = expansionCacheSize > 0 ? new ExpansionCache(expansionCacheSize) : null;
+
+        List<FST.Arc<BytesRef>> arcs = readRootArcs(fst);
+        keyStarts = new BitSet();
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (FST.Arc<BytesRef> arc : arcs) {
+            int label = arc.label();
+            keyStarts.set(label);
+            if (label >= CACHED_ROOT_ARC_MIN && label <= CACHED_ROOT_ARC_MAX) {
+                min = Math.min(min, label);
+                max = Math.max(max, label);
+            }
+        }
+        if (min > max) {
+            rootArcs = null;
+            rootArcsBase = 0;
+        } else {
+            @SuppressWarnings("unchecked")
+            FST.Arc<BytesRef>[] cache = new FST.Arc[max - min + 1];
+            for (FST.Arc<BytesRef> arc : arcs) {
+                int label = arc.label();
+                if (label >= min && label <= max) {
+                    cache[label - min] = arc;
+                }
+            }
+            rootArcs = cache;
+            rootArcsBase = min;
+        }
+    }
+
+    /**
+     * Checks whether some key starts with the given code point, without touching
+     * the FST. Filters call this with the first code point of a token (after
+     * case folding) to pass tokens which can not match through quickly.
+     *
+     * @param codePoint
+     *            the first code point of a token
+     * @return {@code false} if no key starts with the code point
+     */
+    public boolean mayStartKey(int codePoint) {
+        return keyStarts.get(codePoint);
+    }
+
+    /**
+     * Follows the root arc of the FST labeled with the given code point. Arcs for
+     * kana and kanji are served from a cache built with the map, others are looked
+     * up in the FST.
+     *
+     * @param codePoint
+     *            the first code point of a token
+     * @param arc
+     *            the arc to fill
+     * @param reader
+     *            a reader of the FST, used when the arc is not cached
+     * @return {@code arc}, or {@code null} if no key starts with the code point
+     * @throws IOException
+     *             if fail to read the FST
+     */
+    public FST.Arc<BytesRef> findRootArc(int codePoint, FST.Arc<BytesRef> arc, FST.BytesReader reader)
+            throws IOException {
+        if (!keyStarts.get(codePoint)) {
+            return null;
+        }
+        if (rootArcs != null && codePoint >= rootArcsBase && codePoint - rootArcsBase < rootArcs.length) {
+            return arc.copyFrom(rootArcs[codePoint - rootArcsBase]);
+        }
+        return fst.findTargetArc(codePoint, fst.getFirstArc(arc), arc, reader);
+    }
+
+    /**
+     * Get the word of an output.
+     *
+     * @param id
+     *            the id of the word in an output of the FST
+     * @return the word which has the specified id
+     */
+    public CharSequence getWord(int id) {
+        return chikkar != null ? chikkar.getWord(id) : words[id];
+    }
+
+    /**
+     * Folds the case of each code point with {@link Character#toLowerCase(int)},
+     * the same folding the filters apply to input when ignoring case.
+     *
+     * @param input
+     *            the string to fold
+     * @return the folded string, or {@code input} itself if nothing changed
+     */
+    public static String foldCase(String input) {
+        for (int i = 0; i < input.length();) {
+            int codePoint = input.codePointAt(i);
+            if (Character.toLowerCase(codePoint) != codePoint) {
+                StringBuilder folded = new StringBuilder(input.length());
+                folded.append(input, 0, i);
+                while (i < input.length()) {
+                    codePoint = input.codePointAt(i);
+                    folded.appendCodePoint(Character.toLowerCase(codePoint));
+                    i += Character.charCount(codePoint);
+                }
+                return folded.toString();
+            }
+            i += Character.charCount(codePoint);
+        }
+        return input;
+    }
+
+    /**
+     * Compares two strings by code points without decoding them. UTF-16 order only
+     * differs at the first differing char when both are surrogates or in
+     * U+E000..U+FFFF, so such chars are shifted to put surrogates after the rest.
+     *
+     * @param a
+     *            a string
+     * @param b
+     *            another string
+     * @return a negative number, zero or a positive number as {@code a} is less
+     *         than, equal to or greater than {@code b}
+     */
+    public static int compareCodePoints(String a, String b) {
+        final int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(i);
+            if (ca != cb) {
+                if (ca >= Character.MIN_SURROGATE && cb >= Character.MIN_SURROGATE) {
+                    return fixUpSurrogate(ca) - fixUpSurrogate(cb);
+                }
+                return ca - cb;
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    private static int fixUpSurrogate(char c) {
+        // surrogates to 0xF800..0xFFFF, U+E000..U+FFFF to 0xD800..0xF7FF
+        return c >= 0xE000 ? c - 0x800 : c + 0x2000;
+    }
+
+    /**
+     * Validates a limit setting, which is either {@link #UNLIMITED} or positive.
+     *
+     * @param name
+     *            the name of the setting, for the error message
+     * @param value
+     *            the value of the setting
+     * @return {@code value}
+     */
+    public static int checkLimit(String name, int value) {
+        if (value != UNLIMITED && value < 1) {
+            throw new IllegalArgumentException(name + " must be positive or " + UNLIMITED + ", but was " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Checks the size of the sort buffer of {@link Builder#setOfflineSort(Path, int)},
+     * which {@link OfflineSorter} takes as an int of bytes.
+     *
+     * @param name
+     *            the name of the setting, for the message of the error
+     * @param megabytes
+     *            the size of the buffer in megabytes
+     * @return the size
+     */
+    public static int checkSortBuffer(String name, long megabytes) {
+        if (megabytes < 1 || megabytes >= 2048) {
+            throw new IllegalArgumentException(
+                    name + " must be between 1mb and 2047mb, but was " + megabytes + "mb");
+        }
+        return (int) megabytes;
+    }
+
+    /**
+     * Counts the synonyms of an output which filters emit, without moving the
+     * reader. The reader must be positioned at the first synonym, just after the
+     * header.
+     *
+     * @param reader
+     *            reader of the output
+     * @param count
+     *            number of synonyms in the output
+     * @param weighted
+     *            whether the synonyms have weights
+     * @param topK
+     *            the maximum number of synonyms, or {@link #UNLIMITED}
+     * @param minWeight
+     *            the minimum weight of a synonym
+     * @return the number of leading synonyms to emit
+     */
+    static int countSelectedOutputs(ByteArrayDataInput reader, int count, boolean weighted, int topK,
+            float minWeight) {
+        int selected = topK == UNLIMITED ? count : Math.min(count, topK);
+        if (!weighted) {
+            return RelationManager.DEFAULT_WEIGHT < minWeight ? 0 : selected;
+        }
+        if (minWeight == Float.NEGATIVE_INFINITY) {
+            return selected;
+        }
+        // weights are descending, so stop at the first one which is too small
+        final int start = reader.getPosition();
+        int passed = 0;
+        while (passed < selected) {
+            reader.readVInt();
+            if (Float.intBitsToFloat(reader.readInt()) < minWeight) {
+                break;
+            }
+            passed++;
+        }
+        reader.setPosition(start);
+        return passed;
+    }
+
+    private static List<FST.Arc<BytesRef>> readRootArcs(FST<BytesRef> fst) {
+        List<FST.Arc<BytesRef>> arcs = new ArrayList<>();
+        if (fst == null) {
+            return arcs;
+        }
+        try {
+            FST.Arc<BytesRef> arc = fst.getFirstArc(new FST.Arc<>());
+            if (!FST.targetHasArcs(arc)) {
+                return arcs;
+            }
+            FST.BytesReader reader = fst.getBytesReader();
+            fst.readFirstTargetArc(arc, arc, reader);
+            while (true) {
+                if (arc.label() != FST.END_LABEL) {
+                    arcs.add(new FST.Arc<BytesRef>().copyFrom(arc));
+                }
+                if (arc.isLast()) {
+                    break;
+                }
+                fst.readNextArc(arc, reader);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to read root arcs of the synonym FST", e);
+        }
+        return arcs;
     }
 
     public static class Builder {
+        private static final String OFFLINE_SORT_PREFIX = "chikkar_synonym";
+        // folded key in code point order, i.e. UTF-8 byte order, then original key
+        private static final Comparator<BytesRef> KEY_RECORD_ORDER = (a, b) -> {
+            final int aFolded = a.offset + foldedLength(a);
+            final int bFolded = b.offset + foldedLength(b);
+            int cmp = Arrays.compareUnsigned(a.bytes, a.offset, aFolded, b.bytes, b.offset, bFolded);
+            if (cmp != 0) {
+                return cmp;
+            }
+            return Arrays.compareUnsigned(a.bytes, aFolded, a.offset + a.length - Integer.BYTES, b.bytes, bFolded,
+                    b.offset + b.length - Integer.BYTES);
+        };
+
         private final boolean dedup;
+        private final boolean ignoreCase;
+        private int maxExpansions = UNLIMITED;
+        private int expansionCacheSize;
+        private boolean expand = true;
+        private int transitiveDepth = 1;
+        private Path tempDir;
+        private int sortBufferMegabytes;
+        private boolean keepRelations;
 
         /**
          * Default constructor, passes {@code dedup=true}.
@@ -62,7 +421,126 @@ public class ChikkarSynonymMap {
          *            will be added only once.
          */
         public Builder(boolean dedup) {
+            this(dedup, false);
+        }
+
+        /**
+         * Constructor with arguments
+         *
+         * @param dedup
+         *            If dedup is true then identical rules (same input, same output)
+         *            will be added only once.
+         * @param ignoreCase
+         *            If ignoreCase is true then keys are case-folded with
+         *            {@link #foldCase(String)}, and keys which fold to the same
+         *            string share their outputs.
+         */
+        public Builder(boolean dedup, boolean ignoreCase) {
             this.dedup = dedup;
+            this.ignoreCase = ignoreCase;
+        }
+
+        /**
+         * Limits the number of synonyms stored for each key. Synonyms are kept in
+         * dictionary priority order, i.e. the order of
+         * {@link Chikkar#getSynonymId(String)}, and the rest are dropped.
+         *
+         * @param maxExpansions
+         *            the maximum number of synonyms per key, or {@link #UNLIMITED}
+         * @return this builder
+         */
+        public Builder setMaxExpansions(int maxExpansions) {
+            this.maxExpansions = checkLimit("max_expansions", maxExpansions);
+            return this;
+        }
+
+        /**
+         * Enables the {@link ExpansionCache} of the map to build.
+         *
+         * @param expansionCacheSize
+         *            the number of entries, 0 to disable the cache
+         * @return this builder
+         */
+        public Builder setExpansionCacheSize(int expansionCacheSize) {
+            if (expansionCacheSize < 0) {
+                throw new IllegalArgumentException(
+                        "expansion_cache_size must not be negative, but was " + expansionCacheSize);
+            }
+            this.expansionCacheSize = expansionCacheSize;
+            return this;
+        }
+
+        /**
+         * Chooses between expanding a key to all of its synonyms (the default), and
+         * replacing it with one canonical word. Words which are synonyms of each
+         * other, directly or over several dictionary lines, form a group, and the
+         * canonical word of a group is its smallest word. A key is replaced by the
+         * smallest canonical word of its own group and the groups of its synonyms,
+         * so the same key is always replaced by the same word whether it is
+         * analyzed at index or at query time, and the key of a directed line is
+         * replaced by the canonical word of its targets.
+         *
+         * @param expand
+         *            {@code false} to replace keys with their canonical word
+         * @return this builder
+         */
+        public Builder setExpand(boolean expand) {
+            this.expand = expand;
+            return this;
+        }
+
+        /**
+         * Expands each key to the synonyms of its synonyms, so words chained over
+         * several dictionary lines or dictionaries become synonyms. A word reached
+         * through several paths is added once, with the product of the weights
+         * along the shortest one, and cycles stop there.
+         *
+         * @param transitiveDepth
+         *            the maximum number of hops from a key, 1 for direct synonyms
+         *            only, or {@link #UNLIMITED} for the whole closure
+         * @return this builder
+         */
+        public Builder setTransitiveDepth(int transitiveDepth) {
+            if (transitiveDepth == 0) {
+                throw new IllegalArgumentException("transitive_depth must not be 0");
+            }
+            this.transitiveDepth = checkLimit("transitive_depth", transitiveDepth);
+            return this;
+        }
+
+        /**
+         * Sorts the keys in files under the given directory with an
+         * {@link OfflineSorter}, instead of on heap. The output of each key is then
+         * computed when it is added to the FST, so the sort of the keys holds at most
+         * the sort buffer, however many keys there are. The relations of the
+         * {@link Chikkar} instance stay on heap.
+         *
+         * @param tempDir
+         *            the directory of the sort files, which are deleted after the
+         *            build
+         * @param sortBufferMegabytes
+         *            the heap used to sort keys, in megabytes
+         * @return this builder
+         */
+        public Builder setOfflineSort(Path tempDir, int sortBufferMegabytes) {
+            this.tempDir = tempDir;
+            this.sortBufferMegabytes = checkSortBuffer("sort buffer", sortBufferMegabytes);
+            return this;
+        }
+
+        /**
+         * Keeps the relations of the {@link Chikkar} instance after the build,
+         * instead of clearing them to free memory, so that its dictionaries can be
+         * reloaded with {@link Chikkar#reloadDictionary(Path, org.apache.lucene.analysis.Analyzer)}
+         * and the map built again.
+         *
+         * @param keepRelations
+         *            {@code true} to keep the relations
+         * @return this builder
+         */
+        public Builder setKeepRelations(boolean keepRelations) {
+            this.keepRelations = keepRelations;
+            return this;
         }
 
         /**
@@ -77,59 +555,281 @@ public class ChikkarSynonymMap {
         public ChikkarSynonymMap build(Chikkar chikkar) throws IOException {
             ByteSequenceOutputs outputs = ByteSequenceOutputs.getSingleton();
             // TODO: are we using the best sharing options?
+            // Wide nodes, like the root which has an arc for every kanji a key
+            // starts with, are written with direct addressing by the FST builder.
             org.apache.lucene.util.fst.Builder<BytesRef> builder = new org.apache.lucene.util.fst.Builder<>(
                     FST.INPUT_TYPE.BYTE4, outputs);
 
-            BytesRefBuilder scratch = new BytesRefBuilder();
-            ByteArrayDataOutput scratchOutput = new ByteArrayDataOutput();
+            KeyWriter writer = new KeyWriter(chikkar, builder, expand ? null : new SynonymGroups(chikkar));
+            if (tempDir == null) {
+                addSortedKeys(chikkar, writer);
+            } else {
+                addOfflineSortedKeys(chikkar, writer);
+            }
 
-            final Set<Integer> dedupSet;
+            FST<BytesRef> fst = builder.finish();
+            if (!keepRelations) {
+                // remove unused relation manager
+                chikkar.clearRelation();
+            }
+            return new ChikkarSynonymMap(chikkar, fst, writer.maxHorizontalContext, ignoreCase, expansionCacheSize);
+        }
 
-            if (dedup) {
-                dedupSet = new HashSet<>();
-            } else {
-                dedupSet = null;
+        private void addSortedKeys(Chikkar chikkar, KeyWriter writer) throws IOException {
+            List<String> keys = chikkar.getSortedRelationKeys();
+            if (!ignoreCase) {
+                for (String key : keys) {
+                    writer.add(key, Collections.singletonList(key));
+                }
+                return;
+            }
+            // folded key -> original keys
+            Map<String, List<String>> foldedKeys = new HashMap<>();
+            for (String key : keys) {
+                foldedKeys.computeIfAbsent(foldCase(key), k -> new ArrayList<>(1)).add(key);
+            }
+            String[] folded = foldedKeys.keySet().toArray(new String[0]);
+            Arrays.parallelSort(folded, CODE_POINT_ORDER);
+            for (String key : folded) {
+                writer.add(key, foldedKeys.get(key));
+            }
+        }
+
+        private void addOfflineSortedKeys(Chikkar chikkar, KeyWriter writer) throws IOException {
+            try (Directory directory = FSDirectory.open(tempDir)) {
+                OfflineSorter sorter = new OfflineSorter(directory, OFFLINE_SORT_PREFIX, KEY_RECORD_ORDER,
+                        OfflineSorter.BufferSize.megabytes(sortBufferMegabytes), OfflineSorter.MAX_TEMPFILES, -1,
+                        null, 0);
+                IndexOutput unsorted = directory.createTempOutput(OFFLINE_SORT_PREFIX, "keys", IOContext.DEFAULT);
+                String sortedName = null;
+                OfflineSorter.ByteSequencesReader reader = null;
+                try {
+                    try (OfflineSorter.ByteSequencesWriter out = new OfflineSorter.ByteSequencesWriter(unsorted)) {
+                        BytesRefBuilder record = new BytesRefBuilder();
+                        chikkar.forEachRelationKey(key -> {
+                            try {
+                                writeKeyRecord(out, record, ignoreCase ? foldCase(key) : key, key);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                        CodecUtil.writeFooter(unsorted);
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+
+                    sortedName = sorter.sort(unsorted.getName());
+                    reader = new OfflineSorter.ByteSequencesReader(
+                            directory.openChecksumInput(sortedName, IOContext.READONCE), sortedName);
+                    String folded = null;
+                    List<String> originals = new ArrayList<>(1);
+                    BytesRef record;
+                    while ((record = reader.next()) != null) {
+                        final int foldedLength = foldedLength(record);
+                        final int end = record.offset + record.length - Integer.BYTES;
+                        String key = new String(record.bytes, record.offset, foldedLength, StandardCharsets.UTF_8);
+                        if (!key.equals(folded)) {
+                            if (folded != null) {
+                                writer.add(folded, originals);
+                            }
+                            folded = key;
+                            originals = new ArrayList<>(1);
+                        }
+                        String original = record.offset + foldedLength == end ? key
+                                : new String(record.bytes, record.offset + foldedLength,
+                                        end - record.offset - foldedLength, StandardCharsets.UTF_8);
+                        // a word loaded by several dictionaries is listed once for each
+                        if (originals.isEmpty() || !originals.get(originals.size() - 1).equals(original)) {
+                            originals.add(original);
+                        }
+                    }
+                    if (folded != null) {
+                        writer.add(folded, originals);
+                    }
+                } finally {
+                    IOUtils.closeWhileHandlingException(reader);
+                    if (sortedName == null) {
+                        IOUtils.deleteFilesIgnoringExceptions(directory, unsorted.getName());
+                    } else {
+                        IOUtils.deleteFilesIgnoringExceptions(directory, unsorted.getName(), sortedName);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes a key as a sort record: the UTF-8 bytes of the folded key, then those
+         * of the original key unless it is the same, then the length of the folded
+         * key as an int.
+         */
+        private static void writeKeyRecord(OfflineSorter.ByteSequencesWriter out, BytesRefBuilder record,
+                String folded, String original) throws IOException {
+            byte[] bytes = folded.getBytes(StandardCharsets.UTF_8);
+            record.clear();
+            record.append(bytes, 0, bytes.length);
+            if (!original.equals(folded)) {
+                byte[] originalBytes = original.getBytes(StandardCharsets.UTF_8);
+                record.append(originalBytes, 0, originalBytes.length);
+            }
+            record.append((byte) (bytes.length >>> 24));
+            record.append((byte) (bytes.length >>> 16));
+            record.append((byte) (bytes.length >>> 8));
+            record.append((byte) bytes.length);
+            out.write(record.get());
+        }
+
+        private static int foldedLength(BytesRef record) {
+            final int end = record.offset + record.length;
+            return ((record.bytes[end - 4] & 0xFF) << 24) | ((record.bytes[end - 3] & 0xFF) << 16)
+                    | ((record.bytes[end - 2] & 0xFF) << 8) | (record.bytes[end - 1] & 0xFF);
+        }
+
+        /**
+         * Counts the tokens of a key or a synonym, namely one more than the number of
+         * {@link #WORD_SEPARATOR}s.
+         */
+        private static int countTokens(String key) {
+            int count = 1;
+            for (int i = 0; i < key.length(); i++) {
+                if (key.charAt(i) == WORD_SEPARATOR) {
+                    count++;
+                }
             }
+            return count;
+        }
 
-            final byte[] spare = new byte[5];
-            List<String> keys = chikkar.getSortedKeys();
+        /**
+         * Sorts positions of synonyms by descending weight. The sort is stable, so
+         * synonyms of the same weight keep the dictionary priority order.
+         */
+        private static final class WeightSorter extends InPlaceMergeSorter {
+            private int[] order;
+            private float[] weights;
 
-            final IntsRefBuilder scratchIntsRef = new IntsRefBuilder();
-            final String spliter = String.valueOf(WORD_SEPARATOR);
-            int maxHorizontalContext = 0;
+            void sort(int[] order, float[] weights, int length) {
+                this.order = order;
+                this.weights = weights;
+                sort(0, length);
+                this.order = null;
+                this.weights = null;
+            }
 
-            for (String input : keys) {
-                maxHorizontalContext = Math.max(maxHorizontalContext, input.split(spliter).length);
+            @Override
+            protected int compare(int i, int j) {
+                return Float.compare(weights[order[j]], weights[order[i]]);
+            }
 
-                List<Integer> ords = chikkar.getSynonymId(input);
-                if (ords.isEmpty()) {
-                    continue;
+            @Override
+            protected void swap(int i, int j) {
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }
+
+        /**
+         * Writes the output of each key to the FST builder. Keys must be added in
+         * {@link #CODE_POINT_ORDER}.
+         */
+        private class KeyWriter {
+            private final Chikkar chikkar;
+            private final org.apache.lucene.util.fst.Builder<BytesRef> builder;
+            private final BytesRefBuilder scratch = new BytesRefBuilder();
+            private final ByteArrayDataOutput scratchOutput = new ByteArrayDataOutput();
+            // ids written for the current key, cleared after each key
+            private final BitSet dedupSet = dedup ? new BitSet() : null;
+            private final byte[] spare = new byte[5];
+            private final IntsRefBuilder scratchIntsRef = new IntsRefBuilder();
+            private final WeightSorter weightSorter = new WeightSorter();
+            private int[] order = new int[8];
+            private int maxHorizontalContext = 0;
+            // groups of the canonical words, or null when expanding
+            private final SynonymGroups groups;
+
+            KeyWriter(Chikkar chikkar, org.apache.lucene.util.fst.Builder<BytesRef> builder, SynonymGroups groups) {
+                this.chikkar = chikkar;
+                this.builder = builder;
+                this.groups = groups;
+            }
+
+            /**
+             * @param input
+             *            the key, folded if ignoring case
+             * @param originals
+             *            the keys in the dictionaries which fold to {@code input}
+             */
+            void add(String input, List<String> originals) throws IOException {
+                maxHorizontalContext = Math.max(maxHorizontalContext, countTokens(input));
+
+                int[] ords = chikkar.getSynonymIds(originals.get(0));
+                float[] weights = chikkar.getSynonymWeights(originals.get(0));
+                for (int i = 1; i < originals.size(); i++) {
+                    int[] moreOrds = chikkar.getSynonymIds(originals.get(i));
+                    float[] more = chikkar.getSynonymWeights(originals.get(i));
+                    int from = ords.length;
+                    ords = Arrays.copyOf(ords, from + moreOrds.length);
+                    System.arraycopy(moreOrds, 0, ords, from, moreOrds.length);
+                    weights = Arrays.copyOf(weights, from + more.length);
+                    System.arraycopy(more, 0, weights, from, more.length);
+                }
+                if (ords.length == 0) {
+                    return;
+                }
+                if (transitiveDepth != 1) {
+                    float[][] closureWeights = { weights };
+                    ords = addTransitive(chikkar, originals, ords, closureWeights);
+                    weights = closureWeights[0];
+                }
+                if (!expand) {
+                    ords = new int[] { groups.canonicalId(originals, ords) };
+                    weights = new float[] { RelationManager.DEFAULT_WEIGHT };
+                }
+
+                int numEntries = ords.length;
+                // strongest synonyms first; ties keep the dictionary priority order
+                order = ArrayUtil.grow(order, numEntries);
+                boolean weighted = false;
+                for (int i = 0; i < numEntries; i++) {
+                    order[i] = i;
+                    weighted |= weights[i] != RelationManager.DEFAULT_WEIGHT;
+                }
+                if (weighted) {
+                    weightSorter.sort(order, weights, numEntries);
                 }
 
-                int numEntries = ords.size();
                 // output size, assume the worst case
-                int estimatedSize = 5 + numEntries * 5; // numEntries + one ord for each entry
+                // numEntries + one ord (and weight) for each entry
+                int estimatedSize = 5 + numEntries * (weighted ? 9 : 5);
 
                 scratch.grow(estimatedSize);
                 scratchOutput.reset(scratch.bytes());
 
                 // now write our output data:
                 int count = 0;
-                for (int i = 0; i < numEntries; i++) {
+                for (int k = 0; k < numEntries; k++) {
+                    final int i = order[k];
                     if (dedupSet != null) {
-                        // box once
-                        final Integer ent = ords.get(i);
-                        if (dedupSet.contains(ent)) {
+                        if (dedupSet.get(ords[i])) {
                             continue;
                         }
-                        dedupSet.add(ent);
+                        dedupSet.set(ords[i]);
+                    }
+                    scratchOutput.writeVInt(ords[i]);
+                    // the outputs of a key are buffered at the positions after it
+                    maxHorizontalContext = Math.max(maxHorizontalContext,
+                            countTokens(chikkar.getWord(ords[i]).toString()));
+                    if (weighted) {
+                        scratchOutput.writeInt(Float.floatToIntBits(weights[i]));
                     }
-                    scratchOutput.writeVInt(ords.get(i));
                     count++;
+                    if (count == maxExpansions) {
+                        break;
+                    }
                 }
 
                 final int pos = scratchOutput.getPosition();
-                scratchOutput.writeVInt(count << 1);
+                scratchOutput.writeVInt((count << OUTPUT_COUNT_SHIFT) | (weighted ? OUTPUT_WEIGHTED : 0)
+                        | (expand ? 0 : OUTPUT_REPLACE));
                 final int pos2 = scratchOutput.getPosition();
                 final int vIntLen = pos2 - pos;
 
@@ -139,17 +839,169 @@ public class ChikkarSynonymMap {
                 System.arraycopy(spare, 0, scratch.bytes(), 0, vIntLen);
 
                 if (dedupSet != null) {
-                    dedupSet.clear();
+                    for (int ord : ords) {
+                        dedupSet.clear(ord);
+                    }
                 }
 
                 scratch.setLength(scratchOutput.getPosition());
                 builder.add(Util.toUTF32(input, scratchIntsRef), scratch.toBytesRef());
             }
+        }
 
-            FST<BytesRef> fst = builder.finish();
-            // remove unused relation manager
-            chikkar.clearRelation();
-            return new ChikkarSynonymMap(chikkar, fst, maxHorizontalContext);
+        /**
+         * Walks the relations from the direct synonyms of the keys breadth first, up
+         * to {@link #transitiveDepth} hops, and returns the direct synonyms followed
+         * by the words reached.
+         *
+         * @param weights
+         *            holds the weights of the direct synonyms, replaced with the
+         *            weights of the returned synonyms
+         */
+        private int[] addTransitive(Chikkar chikkar, List<String> keys, int[] ords, float[][] weights) {
+            int[] closure = Arrays.copyOf(ords, Math.max(ords.length * 2, 8));
+            float[] closureWeights = Arrays.copyOf(weights[0], closure.length);
+            int size = ords.length;
+            BitSet seen = new BitSet();
+            for (int id : ords) {
+                seen.set(id);
+            }
+            // a chain back to a key stops there, as a key is not its own synonym
+            for (String key : keys) {
+                int id = chikkar.getWordId(key);
+                if (id >= 0) {
+                    seen.set(id);
+                }
+            }
+            int from = 0;
+            for (int depth = 1; depth != transitiveDepth && from < size; depth++) {
+                final int to = size;
+                for (int i = from; i < to; i++) {
+                    CharSequence word = chikkar.getWord(closure[i]);
+                    int[] next = chikkar.getSynonymIds(word);
+                    float[] nextWeights = chikkar.getSynonymWeights(word);
+                    for (int k = 0; k < next.length; k++) {
+                        int id = next[k];
+                        if (seen.get(id)) {
+                            continue;
+                        }
+                        seen.set(id);
+                        if (size == closure.length) {
+                            closure = Arrays.copyOf(closure, size * 2);
+                            closureWeights = Arrays.copyOf(closureWeights, size * 2);
+                        }
+                        closureWeights[size] = closureWeights[i] * nextWeights[k];
+                        closure[size++] = id;
+                    }
+                }
+                from = to;
+            }
+            weights[0] = Arrays.copyOf(closureWeights, size);
+            return Arrays.copyOf(closure, size);
+        }
+
+        /**
+         * Groups the words which are synonyms of each other with union-find, before
+         * any key is written, so that the canonical word of a key does not depend on
+         * which lines it shares. Two words are joined when each is a synonym of the
+         * other; a directed line does not join its key to its targets. The groups
+         * are found in one pass over a {@link ChikkarSnapshot} of the relations, and
+         * are indexed by word id.
+         */
+        private static final class SynonymGroups {
+            private final Chikkar chikkar;
+            private final ChikkarSnapshot snapshot;
+            private final int[] parents;
+            // id of the smallest word of the group, valid at the roots
+            private final int[] canonicalIds;
+            // words which share a group with another word
+            private final BitSet grouped = new BitSet();
+
+            SynonymGroups(Chikkar chikkar) {
+                this.chikkar = chikkar;
+                this.snapshot = chikkar.snapshot();
+                // the related ids of each word by id, sorted to find the reverse relations
+                final int[][][] holder = { new int[0][] };
+                snapshot.forEachRelation((ids, id) -> {
+                    if (id >= holder[0].length) {
+                        holder[0] = ArrayUtil.grow(holder[0], id + 1);
+                    }
+                    int[] sorted = ids.clone();
+                    Arrays.sort(sorted);
+                    holder[0][id] = sorted;
+                });
+                final int[][] sortedRelations = holder[0];
+
+                parents = new int[sortedRelations.length];
+                canonicalIds = new int[sortedRelations.length];
+                for (int id = 0; id < parents.length; id++) {
+                    parents[id] = id;
+                    canonicalIds[id] = id;
+                }
+                for (int id = 0; id < sortedRelations.length; id++) {
+                    if (sortedRelations[id] == null) {
+                        continue;
+                    }
+                    for (int related : sortedRelations[id]) {
+                        // each pair is joined from its smaller id
+                        if (related > id && related < sortedRelations.length && sortedRelations[related] != null
+                                && Arrays.binarySearch(sortedRelations[related], id) >= 0) {
+                            union(id, related);
+                        }
+                    }
+                }
+            }
+
+            private int find(int id) {
+                while (parents[id] != id) {
+                    // path halving
+                    parents[id] = parents[parents[id]];
+                    id = parents[id];
+                }
+                return id;
+            }
+
+            private void union(int a, int b) {
+                grouped.set(a);
+                grouped.set(b);
+                int rootA = find(a);
+                int rootB = find(b);
+                if (rootA == rootB) {
+                    return;
+                }
+                parents[rootB] = rootA;
+                canonicalIds[rootA] = smaller(canonicalIds[rootA], canonicalIds[rootB]);
+            }
+
+            private int smaller(int a, int b) {
+                if (a < 0) {
+                    return b;
+                }
+                return snapshot.getWord(b).compareTo(snapshot.getWord(a)) < 0 ? b : a;
+            }
+
+            // canonical id of the group of the word, or the id itself if it is in none
+            private int groupCanonicalId(int id) {
+                return grouped.get(id) ? canonicalIds[find(id)] : id;
+            }
+
+            /**
+             * Picks the smallest canonical word among the groups of the given keys
+             * and of their synonyms.
+             */
+            int canonicalId(List<String> keys, int[] ords) {
+                int canonical = -1;
+                for (String key : keys) {
+                    int id = chikkar.getWordId(key);
+                    if (id >= 0 && grouped.get(id)) {
+                        canonical = smaller(canonical, canonicalIds[find(id)]);
+                    }
+                }
+                for (int id : ords) {
+                    canonical = smaller(canonical, groupCanonicalId(id));
+                }
+                return canonical;
+            }
         }
     }
 
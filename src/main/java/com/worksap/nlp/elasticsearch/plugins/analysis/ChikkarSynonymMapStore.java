@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.analysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Keeps built {@link ChikkarSynonymMap}s on disk, so that they are loaded
+ * instead of built again after a restart. Each map is stored in a directory
+ * named after the fingerprint of everything it was built from, see
+ * {@link #fingerprint(Settings, String, List)}: the FST as written by
+ * {@link FST#save(Path)}, and a checksummed file with the settings of the map
+ * and the words of its outputs. The outputs of the stored FST refer to the words
+ * by their index in that file rather than by the ids of the dictionaries, so
+ * that a loaded map holds only the words it outputs.
+ * <p>
+ * A snapshot which fails to load is deleted, and the map is built again. As the
+ * fingerprint changes with every change of the dictionaries, snapshots which are
+ * not used any more pile up; when a snapshot is saved, only the most recently
+ * used ones are kept.
+ */
+public final class ChikkarSynonymMapStore {
+
+    private static final Logger log = LogManager.getLogger(ChikkarSynonymMapStore.class);
+
+    /** name of the directory of snapshots in the data path of a node */
+    public static final String DIRECTORY_NAME = "chikkar_synonym";
+
+    private static final String CODEC_NAME = "ChikkarSynonymMap";
+    // bump when the output format or the way maps are built changes
+    private static final int VERSION_START = 0;
+    // outputs refer to the words by their index in the meta file
+    private static final int VERSION_COMPACT_IDS = 1;
+    private static final int VERSION_CURRENT = VERSION_COMPACT_IDS;
+    private static final String META_FILE = "meta";
+    private static final String FST_FILE = "fst";
+
+    /** the number of snapshots kept by default */
+    public static final int DEFAULT_MAX_SNAPSHOTS = 32;
+
+    private final Path root;
+    private final int maxSnapshots;
+
+    /**
+     * Constructor with argument
+     *
+     * @param root
+     *            the directory which holds one sub-directory per snapshot
+     */
+    public ChikkarSynonymMapStore(Path root) {
+        this(root, DEFAULT_MAX_SNAPSHOTS);
+    }
+
+    /**
+     * Constructor with arguments
+     *
+     * @param root
+     *            the directory which holds one sub-directory per snapshot
+     * @param maxSnapshots
+     *            the number of snapshots kept, the least recently loaded or saved
+     *            ones beyond are deleted
+     */
+    public ChikkarSynonymMapStore(Path root, int maxSnapshots) {
+        if (maxSnapshots < 1) {
+            throw new IllegalArgumentException("maxSnapshots must be positive, but was " + maxSnapshots);
+        }
+        this.root = root;
+        this.maxSnapshots = maxSnapshots;
+    }
+
+    /**
+     * Computes the fingerprint of a map: a digest of the settings of the filter,
+     * the analysis chain used to analyze dictionaries, and the path and content of
+     * each file read to build the map.
+     *
+     * @param filterSettings
+     *            the settings of the synonym filter which change the map
+     * @param analysisChain
+     *            the names and settings of the components of the analysis chain
+     *            in front of the filter
+     * @param files
+     *            the dictionary files in loading order, followed by the files the
+     *            analysis chain reads; a missing file counts as one without
+     *            content
+     * @return the fingerprint as a hex string
+     * @throws IOException
+     *             if a file cannot be read
+     */
+    public static String fingerprint(Settings filterSettings, String analysisChain, List<Path> files)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        update(digest, CODEC_NAME + VERSION_CURRENT);
+        update(digest, filterSettings.toString());
+        update(digest, analysisChain);
+        byte[] buffer = new byte[8192];
+        for (Path file : files) {
+            update(digest, file.toString());
+            if (!Files.isRegularFile(file)) {
+                // unlike an empty file
+                digest.update((byte) 1);
+                continue;
+            }
+            try (InputStream in = Files.newInputStream(file)) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+            // separates the content from the next path
+            digest.update((byte) 0);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update(new byte[] { (byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16),
+                (byte) (bytes.length >>> 8), (byte) bytes.length });
+        digest.update(bytes);
+    }
+
+    /**
+     * Loads the snapshot of a map.
+     *
+     * @param fingerprint
+     *            the fingerprint of the map
+     * @param expansionCacheSize
+     *            the number of entries of the {@link ExpansionCache} of the loaded
+     *            map, 0 to disable it
+     * @return the loaded map, or {@code null} if there is no valid snapshot
+     */
+    public ChikkarSynonymMap load(String fingerprint, int expansionCacheSize) {
+        Path dir = root.resolve(fingerprint);
+        if (!Files.isDirectory(dir)) {
+            return null;
+        }
+        try (Directory directory = FSDirectory.open(dir);
+                ChecksumIndexInput in = directory.openChecksumInput(META_FILE, IOContext.READONCE)) {
+            // older snapshots have other fingerprints, and are only read by mistake
+            CodecUtil.checkHeader(in, CODEC_NAME, VERSION_COMPACT_IDS, VERSION_CURRENT);
+            if (!fingerprint.equals(in.readString())) {
+                throw new IOException("fingerprint does not match");
+            }
+            boolean ignoreCase = in.readByte() != 0;
+            int maxHorizontalContext = in.readVInt();
+            // -1 when no key has synonyms
+            long fstLength = in.readByte() != 0 ? in.readVLong() : -1;
+            String[] words = new String[in.readVInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readString();
+            }
+            CodecUtil.checkFooter(in);
+
+            FST<BytesRef> fst = null;
+            if (fstLength >= 0) {
+                Path fstFile = dir.resolve(FST_FILE);
+                if (Files.size(fstFile) != fstLength) {
+                    throw new IOException("FST file has " + Files.size(fstFile) + " bytes, expected " + fstLength);
+                }
+                fst = FST.read(fstFile, ByteSequenceOutputs.getSingleton());
+            }
+            touch(dir);
+            return new ChikkarSynonymMap(words, fst, maxHorizontalContext, ignoreCase, expansionCacheSize);
+        } catch (IOException | RuntimeException e) {
+            log.warn("failed to load synonym map snapshot " + dir + ", it will be built again", e);
+            try {
+                IOUtils.rm(dir);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot of a map. The snapshot is written to a temporary
+     * directory and then moved in place, so a snapshot is either complete or
+     * absent. A failure is logged and the map is simply not kept. The least
+     * recently used snapshots beyond the maximum are deleted afterwards.
+     *
+     * @param fingerprint
+     *            the fingerprint of the map
+     * @param map
+     *            the map built from a {@link com.worksap.nlp.elasticsearch.plugins.chikkar.Chikkar}
+     *            instance
+     */
+    public void save(String fingerprint, ChikkarSynonymMap map) {
+        Path tmp = null;
+        try {
+            Files.createDirectories(root);
+            tmp = Files.createTempDirectory(root, fingerprint + ".");
+            int[] ids = outputWordIds(map.fst);
+            FST<BytesRef> fst = compactOutputs(map.fst, ids);
+            long fstLength = -1;
+            if (fst != null) {
+                fst.save(tmp.resolve(FST_FILE));
+                fstLength = Files.size(tmp.resolve(FST_FILE));
+            }
+            try (Directory directory = FSDirectory.open(tmp)) {
+                try (IndexOutput out = directory.createOutput(META_FILE, IOContext.DEFAULT)) {
+                    CodecUtil.writeHeader(out, CODEC_NAME, VERSION_CURRENT);
+                    out.writeString(fingerprint);
+                    out.writeByte((byte) (map.ignoreCase ? 1 : 0));
+                    out.writeVInt(map.maxHorizontalContext);
+                    out.writeByte((byte) (fstLength >= 0 ? 1 : 0));
+                    if (fstLength >= 0) {
+                        out.writeVLong(fstLength);
+                    }
+                    out.writeVInt(ids.length);
+                    for (int id : ids) {
+                        out.writeString(map.getWord(id).toString());
+                    }
+                    CodecUtil.writeFooter(out);
+                }
+                directory.sync(fstLength >= 0 ? Arrays.asList(META_FILE, FST_FILE) : Arrays.asList(META_FILE));
+            }
+            Files.move(tmp, root.resolve(fingerprint), StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            prune();
+        } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+            // saved by another filter meanwhile
+        } catch (IOException | RuntimeException e) {
+            log.warn("failed to save synonym map snapshot to " + root, e);
+        } finally {
+            if (tmp != null) {
+                try {
+                    IOUtils.rm(tmp);
+                } catch (IOException e) {
+                    log.warn("failed to delete " + tmp, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks a snapshot as used, so that it is kept by {@link #prune()}.
+     */
+    private static void touch(Path dir) {
+        try {
+            Files.setLastModifiedTime(dir, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.warn("failed to update the modification time of " + dir, e);
+        }
+    }
+
+    /**
+     * Deletes the least recently loaded or saved snapshots beyond
+     * {@link #maxSnapshots}. The temporary directories of snapshots being saved are
+     * the most recent, so they are left alone.
+     */
+    private void prune() throws IOException {
+        List<Path> dirs;
+        try (Stream<Path> list = Files.list(root)) {
+            dirs = list.filter(Files::isDirectory).collect(Collectors.toList());
+        }
+        if (dirs.size() <= maxSnapshots) {
+            return;
+        }
+        Map<Path, FileTime> times = new HashMap<>();
+        for (Path dir : dirs) {
+            times.put(dir, Files.getLastModifiedTime(dir));
+        }
+        dirs.sort(Comparator.comparing(times::get, Comparator.reverseOrder()));
+        for (Path dir : dirs.subList(maxSnapshots, dirs.size())) {
+            try {
+                IOUtils.rm(dir);
+            } catch (IOException e) {
+                log.warn("failed to delete synonym map snapshot " + dir, e);
+            }
+        }
+    }
+
+    /**
+     * @return the sorted ids of the words in the outputs of the FST
+     */
+    private static int[] outputWordIds(FST<BytesRef> fst) throws IOException {
+        if (fst == null) {
+            return new int[0];
+        }
+        BitSet ids = new BitSet();
+        ByteArrayDataInput reader = new ByteArrayDataInput();
+        IntsRefFSTEnum<BytesRef> fstEnum = new IntsRefFSTEnum<>(fst);
+        IntsRefFSTEnum.InputOutput<BytesRef> entry;
+        while ((entry = fstEnum.next()) != null) {
+            BytesRef output = entry.output;
+            reader.reset(output.bytes, output.offset, output.length);
+            int code = reader.readVInt();
+            boolean weighted = (code & ChikkarSynonymMap.OUTPUT_WEIGHTED) != 0;
+            int count = code >>> ChikkarSynonymMap.OUTPUT_COUNT_SHIFT;
+            for (int i = 0; i < count; i++) {
+                ids.set(reader.readVInt());
+                if (weighted) {
+                    reader.readInt();
+                }
+            }
+        }
+        return ids.stream().toArray();
+    }
+
+    /**
+     * Copies the FST with the ids in its outputs replaced by their index in
+     * {@code ids}. The replacement keeps the order of ids, so the outputs keep
+     * their meaning for the filters.
+     *
+     * @param ids
+     *            the sorted ids of the words in the outputs of the FST
+     */
+    private static FST<BytesRef> compactOutputs(FST<BytesRef> fst, int[] ids) throws IOException {
+        if (fst == null) {
+            return null;
+        }
+        org.apache.lucene.util.fst.Builder<BytesRef> builder = new org.apache.lucene.util.fst.Builder<>(
+                FST.INPUT_TYPE.BYTE4, ByteSequenceOutputs.getSingleton());
+        ByteArrayDataInput reader = new ByteArrayDataInput();
+        ByteArrayDataOutput writer = new ByteArrayDataOutput();
+        IntsRefFSTEnum<BytesRef> fstEnum = new IntsRefFSTEnum<>(fst);
+        IntsRefFSTEnum.InputOutput<BytesRef> entry;
+        while ((entry = fstEnum.next()) != null) {
+            BytesRef output = entry.output;
+            reader.reset(output.bytes, output.offset, output.length);
+            // an index is never larger than its id, so the output does not grow
+            byte[] bytes = new byte[output.length];
+            writer.reset(bytes);
+            int code = reader.readVInt();
+            writer.writeVInt(code);
+            boolean weighted = (code & ChikkarSynonymMap.OUTPUT_WEIGHTED) != 0;
+            int count = code >>> ChikkarSynonymMap.OUTPUT_COUNT_SHIFT;
+            for (int i = 0; i < count; i++) {
+                writer.writeVInt(Arrays.binarySearch(ids, reader.readVInt()));
+                if (weighted) {
+                    writer.writeInt(reader.readInt());
+                }
+            }
+            builder.add(entry.input, new BytesRef(bytes, 0, writer.getPosition()));
+        }
+        return builder.finish();
+    }
+}
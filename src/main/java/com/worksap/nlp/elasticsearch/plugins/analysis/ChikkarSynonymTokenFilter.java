@@ -31,8 +31,24 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
 
     private final ChikkarSynonymMap synonyms;
 
+    // Rolling buffers start small and only grow up to this size when a long
+    // match needs more lookahead:
+    private static final int INITIAL_ROLL_BUFFER_SIZE = 4;
+
+    // Whether input is folded with Character#toLowerCase for matching:
     private final boolean ignoreCase;
-    private final int rollBufferSize;
+    private final int maxPathsPerQuery;
+    // Shared cache of first token walks, or null when not used:
+    private final ExpansionCache expansionCache;
+    private final int topK;
+    private final float minWeight;
+    // Number of paths through the synonyms added so far in this stream:
+    private long queryPaths = 1;
+    private final int maxRollBufferSize;
+    private final int initialRollBufferSize;
+    private int rollBufferSize;
+    // Largest size needed by the current stream, used to shrink after a spike:
+    private int peakRollBufferSize;
 
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
     private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
@@ -71,11 +87,14 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
     // Rolling buffer, holding pending input tokens we had to
     // clone because we needed to look ahead, indexed by
     // position:
-    private final ChikkarSynonymTokenFilter.PendingInput[] futureInputs;
+    private ChikkarSynonymTokenFilter.PendingInput[] futureInputs;
 
-    // Holds pending output synonyms for one future position:
+    // Holds pending output synonyms for one future position. Each output is a
+    // slice of a synonym word, so nothing is copied until it is emitted:
     private static class PendingOutputs {
-        CharsRefBuilder[] outputs;
+        CharSequence[] words;
+        int[] wordOffsets;
+        int[] wordLengths;
         int[] endOffsets;
         int[] posLengths;
         int upto;
@@ -85,7 +104,9 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
         int lastPosLength;
 
         public PendingOutputs() {
-            outputs = new CharsRefBuilder[1];
+            words = new CharSequence[1];
+            wordOffsets = new int[1];
+            wordLengths = new int[1];
             endOffsets = new int[1];
             posLengths = new int[1];
         }
@@ -95,16 +116,17 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
             posIncr = 1;
         }
 
-        public CharsRef pullNext() {
+        public void pullNext(CharTermAttribute termAtt) {
             assert upto < count;
             lastEndOffset = endOffsets[upto];
             lastPosLength = posLengths[upto];
-            final CharsRefBuilder result = outputs[upto++];
+            final int offset = wordOffsets[upto];
+            termAtt.append(words[upto], offset, offset + wordLengths[upto]);
+            upto++;
             posIncr = 0;
             if (upto == count) {
                 reset();
             }
-            return result.get();
         }
 
         public int getLastEndOffset() {
@@ -115,24 +137,18 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
             return lastPosLength;
         }
 
-        public void add(char[] output, int offset, int len, int endOffset, int posLength) {
-            if (count == outputs.length) {
-                outputs = ArrayUtil.grow(outputs, count + 1);
-            }
-            if (count == endOffsets.length) {
-                final int[] next = new int[ArrayUtil.oversize(1 + count, Integer.BYTES)];
-                System.arraycopy(endOffsets, 0, next, 0, count);
-                endOffsets = next;
-            }
-            if (count == posLengths.length) {
-                final int[] next = new int[ArrayUtil.oversize(1 + count, Integer.BYTES)];
-                System.arraycopy(posLengths, 0, next, 0, count);
-                posLengths = next;
-            }
-            if (outputs[count] == null) {
-                outputs[count] = new CharsRefBuilder();
+        public void add(CharSequence word, int offset, int len, int endOffset, int posLength) {
+            if (count == words.length) {
+                final int newSize = ArrayUtil.oversize(count + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+                words = ArrayUtil.growExact(words, newSize);
+                wordOffsets = ArrayUtil.growExact(wordOffsets, newSize);
+                wordLengths = ArrayUtil.growExact(wordLengths, newSize);
+                endOffsets = ArrayUtil.growExact(endOffsets, newSize);
+                posLengths = ArrayUtil.growExact(posLengths, newSize);
             }
-            outputs[count].copyChars(output, offset, len);
+            words[count] = word;
+            wordOffsets[count] = offset;
+            wordLengths[count] = len;
             // endOffset can be -1, in which case we should simply
             // use the endOffset of the input token, or X >= 0, in
             // which case we use X as the endOffset for this output
@@ -146,7 +162,7 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
 
     // Rolling buffer, holding stack of pending synonym
     // outputs, indexed by position:
-    private final ChikkarSynonymTokenFilter.PendingOutputs[] futureOutputs;
+    private ChikkarSynonymTokenFilter.PendingOutputs[] futureOutputs;
 
     // Where (in rolling buffers) to write next input saved state:
     private int nextWrite;
@@ -170,14 +186,63 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
      *            synonym map
      * @param ignoreCase
      *            case-folds input for matching with
-     *            {@link Character#toLowerCase(int)}. Note, if you set this to true,
-     *            it's your responsibility to lowercase the input entries when you
-     *            create the {@link SynonymMap}
+     *            {@link Character#toLowerCase(int)}. Input is always folded when
+     *            the map was built with {@code ignoreCase}, which also folds the
+     *            keys
      */
     public ChikkarSynonymTokenFilter(TokenStream input, ChikkarSynonymMap synonyms, boolean ignoreCase) {
+        this(input, synonyms, ignoreCase, ChikkarSynonymMap.UNLIMITED);
+    }
+
+    /**
+     * Constructor with arguments
+     *
+     * @param input
+     *            input tokenstream
+     * @param synonyms
+     *            synonym map
+     * @param ignoreCase
+     *            boolean value to indicate if need to ignore case for synonyms
+     * @param maxPathsPerQuery
+     *            the maximum number of paths through the synonyms of a stream, or
+     *            {@link ChikkarSynonymMap#UNLIMITED}
+     */
+    public ChikkarSynonymTokenFilter(TokenStream input, ChikkarSynonymMap synonyms, boolean ignoreCase,
+            int maxPathsPerQuery) {
+        this(input, synonyms, ignoreCase, maxPathsPerQuery, ChikkarSynonymMap.UNLIMITED, Float.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Constructor with arguments
+     *
+     * @param input
+     *            input tokenstream
+     * @param synonyms
+     *            synonym map
+     * @param ignoreCase
+     *            boolean value to indicate if need to ignore case for synonyms
+     * @param maxPathsPerQuery
+     *            the maximum number of paths through the synonyms of a stream, or
+     *            {@link ChikkarSynonymMap#UNLIMITED}. Each match multiplies the
+     *            paths by the number of its synonyms plus one, and synonyms which
+     *            exceed the limit are dropped in dictionary priority order.
+     * @param topK
+     *            the maximum number of synonyms emitted for a match, strongest
+     *            first, or {@link ChikkarSynonymMap#UNLIMITED}
+     * @param minWeight
+     *            synonyms with a smaller weight are not emitted
+     */
+    public ChikkarSynonymTokenFilter(TokenStream input, ChikkarSynonymMap synonyms, boolean ignoreCase,
+            int maxPathsPerQuery, int topK, float minWeight) {
         super(input);
+        this.maxPathsPerQuery = ChikkarSynonymMap.checkLimit("max_paths_per_query", maxPathsPerQuery);
+        this.topK = ChikkarSynonymMap.checkLimit("top_k", topK);
+        this.minWeight = minWeight;
         this.synonyms = synonyms;
-        this.ignoreCase = ignoreCase;
+        this.ignoreCase = ignoreCase || synonyms.ignoreCase;
+        // The cache holds walks folded as the map's keys, so it only serves filters
+        // which fold input the same way:
+        this.expansionCache = !ignoreCase || synonyms.ignoreCase ? synonyms.expansionCache : null;
         this.fst = synonyms.fst;
         if (fst == null) {
             throw new IllegalArgumentException("fst must be non-null");
@@ -187,20 +252,70 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
         // Must be 1+ so that when roll buffer is at full
         // lookahead we can distinguish this full buffer from
         // the empty buffer:
-        rollBufferSize = 1 + synonyms.maxHorizontalContext;
+        maxRollBufferSize = 1 + Math.max(1, synonyms.maxHorizontalContext);
+        initialRollBufferSize = Math.min(INITIAL_ROLL_BUFFER_SIZE, maxRollBufferSize);
+        allocateRollBuffers(initialRollBufferSize);
 
-        futureInputs = new ChikkarSynonymTokenFilter.PendingInput[rollBufferSize];
-        futureOutputs = new ChikkarSynonymTokenFilter.PendingOutputs[rollBufferSize];
-        for (int pos = 0; pos < rollBufferSize; pos++) {
+        scratchArc = new FST.Arc<>();
+    }
+
+    private void allocateRollBuffers(int size) {
+        rollBufferSize = size;
+        futureInputs = new ChikkarSynonymTokenFilter.PendingInput[size];
+        futureOutputs = new ChikkarSynonymTokenFilter.PendingOutputs[size];
+        for (int pos = 0; pos < size; pos++) {
             futureInputs[pos] = new ChikkarSynonymTokenFilter.PendingInput();
             futureOutputs[pos] = new ChikkarSynonymTokenFilter.PendingOutputs();
         }
+    }
 
-        scratchArc = new FST.Arc<>();
+    /**
+     * Makes sure the rolling buffers can hold {@code size} positions from
+     * nextRead. When they have to grow, pending positions are moved so that
+     * nextRead becomes 0, and the new position of {@code index} is returned.
+     * They double up to the context of the map, but never to less than
+     * {@code size}.
+     */
+    private int ensureRollBufferSize(int size, int index) {
+        peakRollBufferSize = Math.max(peakRollBufferSize, size);
+        if (size <= rollBufferSize) {
+            return index;
+        }
+        final int newSize = Math.max(size, Math.min(maxRollBufferSize, rollBufferSize << 1));
+        final ChikkarSynonymTokenFilter.PendingInput[] newInputs = new ChikkarSynonymTokenFilter.PendingInput[newSize];
+        final ChikkarSynonymTokenFilter.PendingOutputs[] newOutputs = new ChikkarSynonymTokenFilter.PendingOutputs[newSize];
+        for (int pos = 0; pos < newSize; pos++) {
+            if (pos < rollBufferSize) {
+                newInputs[pos] = futureInputs[(nextRead + pos) % rollBufferSize];
+                newOutputs[pos] = futureOutputs[(nextRead + pos) % rollBufferSize];
+            } else {
+                newInputs[pos] = new ChikkarSynonymTokenFilter.PendingInput();
+                newOutputs[pos] = new ChikkarSynonymTokenFilter.PendingOutputs();
+            }
+        }
+        final int newIndex = (index - nextRead + rollBufferSize) % rollBufferSize;
+        nextWrite = (nextWrite - nextRead + rollBufferSize) % rollBufferSize;
+        nextRead = 0;
+        futureInputs = newInputs;
+        futureOutputs = newOutputs;
+        rollBufferSize = newSize;
+        return newIndex;
+    }
+
+    // Number of positions between nextRead and nextWrite:
+    private int pendingInputCount() {
+        return (nextWrite - nextRead + rollBufferSize) % rollBufferSize;
     }
 
-    private void capture() {
-        final ChikkarSynonymTokenFilter.PendingInput input = futureInputs[nextWrite];
+    /**
+     * Captures the current token at nextWrite, growing the rolling buffers if
+     * needed, and returns the position it was written to.
+     */
+    private int capture() {
+        // One more for the captured token, and one to keep full distinct from empty:
+        ensureRollBufferSize(pendingInputCount() + 2, nextWrite);
+        final int pos = nextWrite;
+        final ChikkarSynonymTokenFilter.PendingInput input = futureInputs[pos];
 
         input.state = captureState();
         input.consumed = false;
@@ -210,6 +325,7 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
 
         // Buffer head should never catch up to tail:
         assert nextWrite != nextRead;
+        return pos;
     }
 
     /*
@@ -269,7 +385,7 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
                         lastEndOffset = input.endOffset = offsetAtt.endOffset();
                         inputEndOffset = input.endOffset;
                         if (nextRead != nextWrite) {
-                            capture();
+                            curNextRead = capture();
                         } else {
                             input.consumed = false;
                         }
@@ -290,10 +406,41 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
 
             // Run each char in this token through the FST:
             int bufUpto = 0;
+            // Whether the walk of this token goes to the expansion cache:
+            boolean cacheWalk = false;
+            if (tokenCount == 1 && bufferLen > 0) {
+                // Most tokens can not start any key and stop here without touching
+                // the FST or the expansion cache:
+                final int firstCodePoint = Character.codePointAt(buffer, 0, bufferLen);
+                final int firstLabel = ignoreCase ? Character.toLowerCase(firstCodePoint) : firstCodePoint;
+                if (!synonyms.mayStartKey(firstLabel)) {
+                    break;
+                }
+                final ExpansionCache.Entry cached = expansionCache == null ? null
+                        : expansionCache.get(buffer, bufferLen);
+                if (cached != null) {
+                    // The walk of a frequent first token is cached:
+                    if (!cached.isMatch()) {
+                        break;
+                    }
+                    cached.copyArcTo(scratchArc);
+                    pendingOutput = cached.output();
+                    bufUpto = bufferLen;
+                } else {
+                    cacheWalk = expansionCache != null;
+                    // First hop from the root:
+                    synonyms.findRootArc(firstLabel, scratchArc, fstReader);
+                    pendingOutput = fst.outputs.add(pendingOutput, scratchArc.output());
+                    bufUpto += Character.charCount(firstCodePoint);
+                }
+            }
             while (bufUpto < bufferLen) {
                 final int codePoint = Character.codePointAt(buffer, bufUpto, bufferLen);
                 if (fst.findTargetArc(ignoreCase ? Character.toLowerCase(codePoint) : codePoint, scratchArc, scratchArc,
                         fstReader) == null) {
+                    if (cacheWalk) {
+                        expansionCache.putNoMatch(buffer, bufferLen);
+                    }
                     break byToken;
                 }
 
@@ -301,6 +448,9 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
                 pendingOutput = fst.outputs.add(pendingOutput, scratchArc.output());
                 bufUpto += Character.charCount(codePoint);
             }
+            if (cacheWalk) {
+                expansionCache.put(buffer, bufferLen, scratchArc, pendingOutput);
+            }
 
             // OK, entire token matched; now see if this is a final
             // state:
@@ -321,7 +471,7 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
                 // More matching is possible -- accum the output (if any) of the WORD_SEP arc:
                 pendingOutput = fst.outputs.add(pendingOutput, scratchArc.output());
                 if (nextRead == nextWrite) {
-                    capture();
+                    curNextRead = capture();
                 }
             }
 
@@ -351,20 +501,38 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
 
         final int code = bytesReader.readVInt();
         final boolean keepOrig = (code & 0x1) == 0;
-        final int count = code >>> 1;
+        final boolean weighted = (code & ChikkarSynonymMap.OUTPUT_WEIGHTED) != 0;
+        // A canonical word replaces the input without adding a path, and is never
+        // dropped, as nothing would be left of the match
+        final int count = keepOrig
+                ? limitExpansions(ChikkarSynonymMap.countSelectedOutputs(bytesReader,
+                        code >>> ChikkarSynonymMap.OUTPUT_COUNT_SHIFT, weighted, topK, minWeight))
+                : code >>> ChikkarSynonymMap.OUTPUT_COUNT_SHIFT;
         for (int outputIDX = 0; outputIDX < count; outputIDX++) {
             int wordID = bytesReader.readVInt();
-            char[] scratchChars = synonyms.chikkar.getWordsFromId(wordID).get(0).toCharArray();
+            if (weighted) {
+                // skip the weight
+                bytesReader.readInt();
+            }
+            final CharSequence word = synonyms.getWord(wordID);
 
             int lastStart = 0;
-            final int chEnd = lastStart + scratchChars.length;
+            final int chEnd = lastStart + word.length();
+            // Outputs may run past the buffered inputs, so make room for all of them:
+            int outputCount = 1;
+            for (int chIDX = lastStart; chIDX < chEnd; chIDX++) {
+                if (word.charAt(chIDX) == SynonymMap.WORD_SEPARATOR) {
+                    outputCount++;
+                }
+            }
+            ensureRollBufferSize(outputCount + 1, nextRead);
             int outputUpto = nextRead;
             for (int chIDX = lastStart; chIDX <= chEnd; chIDX++) {
-                if (chIDX == chEnd || scratchChars[chIDX] == SynonymMap.WORD_SEPARATOR) {
+                if (chIDX == chEnd || word.charAt(chIDX) == SynonymMap.WORD_SEPARATOR) {
                     final int outputLen = chIDX - lastStart;
                     // Caller is not allowed to have empty string in
                     // the output:
-                    assert outputLen > 0 : "output contains empty string: " + scratchChars;
+                    assert outputLen > 0 : "output contains empty string: " + word;
                     final int endOffset;
                     final int posLen;
                     if (chIDX == chEnd && lastStart == 0) {
@@ -382,7 +550,7 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
                         endOffset = -1;
                         posLen = 1;
                     }
-                    futureOutputs[outputUpto].add(scratchChars, lastStart, outputLen, endOffset, posLen);
+                    futureOutputs[outputUpto].add(word, lastStart, outputLen, endOffset, posLen);
                     lastStart = 1 + chIDX;
                     outputUpto = rollIncr(outputUpto);
                     assert futureOutputs[outputUpto].posIncr == 1 : "outputUpto=" + outputUpto + " vs nextWrite="
@@ -443,9 +611,8 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
                     // Still have pending outputs to replay at this position
                     input.reset();
                     final int posIncr = outputs.posIncr;
-                    final CharsRef output = outputs.pullNext();
                     clearAttributes();
-                    termAtt.copyBuffer(output.chars, output.offset, output.length);
+                    outputs.pullNext(termAtt);
                     typeAtt.setType(TYPE_SYNONYM);
                     int endOffset = outputs.getLastEndOffset();
                     if (endOffset == -1) {
@@ -474,15 +641,14 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
                 final ChikkarSynonymTokenFilter.PendingOutputs outputs = futureOutputs[nextRead];
                 if (outputs.upto < outputs.count) {
                     final int posIncr = outputs.posIncr;
-                    final CharsRef output = outputs.pullNext();
+                    clearAttributes();
+                    outputs.pullNext(termAtt);
                     futureInputs[nextRead].reset();
                     if (outputs.count == 0) {
                         nextWrite = nextRead = rollIncr(nextRead);
                     }
-                    clearAttributes();
                     // Keep offset from last input token:
                     offsetAtt.setOffset(lastStartOffset, lastEndOffset);
-                    termAtt.copyBuffer(output.chars, output.offset, output.length);
                     typeAtt.setType(TYPE_SYNONYM);
                     posIncrAtt.setPositionIncrement(posIncr);
                     return true;
@@ -496,13 +662,35 @@ public final class ChikkarSynonymTokenFilter extends TokenFilter {
         }
     }
 
+    /**
+     * Returns how many of the synonyms of a match can be added without exceeding
+     * maxPathsPerQuery, and counts the paths they add.
+     */
+    private int limitExpansions(int count) {
+        if (maxPathsPerQuery == ChikkarSynonymMap.UNLIMITED) {
+            return count;
+        }
+        final int limited = (int) Math.max(0, Math.min(count, maxPathsPerQuery / queryPaths - 1));
+        queryPaths *= limited + 1;
+        return limited;
+    }
+
     @Override
     public void reset() throws IOException {
         super.reset();
+        queryPaths = 1;
         finished = false;
         inputSkipCount = 0;
         nextRead = nextWrite = 0;
 
+        // Give back memory after a stream which needed a long lookahead:
+        final int targetSize = Math.max(initialRollBufferSize, peakRollBufferSize);
+        peakRollBufferSize = 0;
+        if (rollBufferSize > Math.max(initialRollBufferSize, 2 * targetSize)) {
+            allocateRollBuffers(targetSize);
+            return;
+        }
+
         // In normal usage these resets would not be needed,
         // since they reset-as-they-are-consumed, but the app
         // may not consume all input tokens (or we might hit an
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.analysis;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.fst.FST;
+
+/**
+ * A bounded cache of the FST walk of the first token of a match, shared by all
+ * filters of one {@link ChikkarSynonymMap}. An entry keeps the arc and the
+ * output reached after the whole token, or that the token leaves the FST, so a
+ * frequent token starts matching without walking the FST again.
+ * <p>
+ * Only tokens which enter the FST are looked up and cached. Tokens which no key
+ * starts with are passed by {@link ChikkarSynonymMap#mayStartKey(int)} before
+ * the cache, so they neither count as misses nor evict entries.
+ * <p>
+ * The cache holds the walk of single tokens rather than the expansions of whole
+ * term sequences. Whether a match goes on to the next tokens depends on the
+ * lookahead, which is not known when the first token is looked up, so
+ * matching resumes from the cached arc and the outputs are decoded by each
+ * filter with its own limits.
+ * <p>
+ * The cache is direct mapped: each term hashes to one slot and a new entry
+ * replaces the old one in its slot. Lookups and updates are lock-free, and a
+ * hit allocates nothing.
+ */
+public final class ExpansionCache {
+
+    /**
+     * The result of walking one token from the root of the FST.
+     */
+    static final class Entry {
+        private final char[] term;
+        private final int hash;
+        // null if the token leaves the FST
+        private final FST.Arc<BytesRef> arc;
+        private final BytesRef output;
+
+        Entry(char[] term, int hash, FST.Arc<BytesRef> arc, BytesRef output) {
+            this.term = term;
+            this.hash = hash;
+            this.arc = arc;
+            this.output = output;
+        }
+
+        /**
+         * @return {@code false} if no key starts with the token
+         */
+        boolean isMatch() {
+            return arc != null;
+        }
+
+        /**
+         * Copies the arc reached after the token into the given arc.
+         */
+        FST.Arc<BytesRef> copyArcTo(FST.Arc<BytesRef> target) {
+            return target.copyFrom(arc);
+        }
+
+        /**
+         * @return the output accumulated along the token
+         */
+        BytesRef output() {
+            return output;
+        }
+
+        private boolean matches(char[] buffer, int length, int hash) {
+            return this.hash == hash && Arrays.equals(term, 0, term.length, buffer, 0, length);
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Constructor with argument
+     *
+     * @param size
+     *            the maximum number of entries, rounded up to a power of 2
+     */
+    public ExpansionCache(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive, but was " + size);
+        }
+        int capacity = Integer.highestOneBit(size);
+        if (capacity < size) {
+            capacity <<= 1;
+        }
+        entries = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    private static int hash(char[] buffer, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + buffer[i];
+        }
+        // spread the high bits, as the slot is taken from the low ones
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Looks up the walk of a token, and counts a hit or a miss.
+     *
+     * @param buffer
+     *            the term of the token
+     * @param length
+     *            the length of the term
+     * @return the cached entry, or {@code null} on miss
+     */
+    Entry get(char[] buffer, int length) {
+        final int h = hash(buffer, length);
+        final Entry entry = entries.get(h & mask);
+        if (entry != null && entry.matches(buffer, length, h)) {
+            hits.increment();
+            return entry;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches the walk of a token which stays in the FST.
+     *
+     * @param buffer
+     *            the term of the token
+     * @param length
+     *            the length of the term
+     * @param arc
+     *            the arc reached after the whole token; it is copied
+     * @param output
+     *            the output accumulated along the token; it is copied
+     */
+    void put(char[] buffer, int length, FST.Arc<BytesRef> arc, BytesRef output) {
+        store(buffer, length, new FST.Arc<BytesRef>().copyFrom(arc), BytesRef.deepCopyOf(output));
+    }
+
+    /**
+     * Caches that a token leaves the FST before its end, namely no key starts
+     * with it.
+     *
+     * @param buffer
+     *            the term of the token
+     * @param length
+     *            the length of the term
+     */
+    void putNoMatch(char[] buffer, int length) {
+        store(buffer, length, null, null);
+    }
+
+    private void store(char[] buffer, int length, FST.Arc<BytesRef> arc, BytesRef output) {
+        final int h = hash(buffer, length);
+        entries.set(h & mask, new Entry(Arrays.copyOf(buffer, length), h, arc, output));
+    }
+
+    /**
+     * @return the maximum number of entries
+     */
+    public int capacity() {
+        return entries.length();
+    }
+
+    /**
+     * @return the number of lookups which found their entry, since the map was
+     *         built
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups which did not find their entry, since the
+     *         map was built
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ExpansionCache[capacity=" + capacity() + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + "]";
+    }
+}
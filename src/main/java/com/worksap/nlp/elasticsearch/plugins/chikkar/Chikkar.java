@@ -20,12 +20,20 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.lucene.analysis.Analyzer;
 
+import com.worksap.nlp.elasticsearch.plugins.analysis.ChikkarSynonymMap;
 import com.worksap.nlp.sudachi.Morpheme;
 
 /**
@@ -43,17 +51,22 @@ public class Chikkar {
     DictionaryManager dictMgn; // Assume only synonymous dictionary is in use.
     RelationManager relationMgn;
 
-    private final Analyzer analyzer;
+    private final EntryAnalyzer analyzer;
     private int dictId = 0;
+    // ids of loaded dictionaries, in loading order
+    private Map<Path, Integer> dictionaryIds = new LinkedHashMap<>();
+    private volatile ChikkarSnapshot snapshot;
 
     public static Chikkar clone(Chikkar obj) {
         Chikkar newObj = new Chikkar(obj.analyzer);
         newObj.dictId = obj.dictId;
+        newObj.dictionaryIds = new LinkedHashMap<>(obj.dictionaryIds);
         newObj.relationMgn = RelationManager.clone(obj.relationMgn);
         return newObj;
     }
 
     public void clear() {
+        snapshot = null;
         dictMgn = null;
         if (relationMgn != null) {
             relationMgn.clear();
@@ -62,6 +75,7 @@ public class Chikkar {
     }
 
     public void clearRelation() {
+        snapshot = null;
         if (relationMgn != null) {
             relationMgn.clear();
             relationMgn = null;
@@ -75,6 +89,17 @@ public class Chikkar {
      *            An {@link Analyzer} instance which is used to tokenize input text
      */
     public Chikkar(Analyzer analyzer) {
+        this(EntryAnalyzer.of(analyzer));
+    }
+
+    /**
+     * Constructor with argument
+     *
+     * @param analyzer
+     *            An {@link EntryAnalyzer} instance which is used to analyze the
+     *            words of dictionaries
+     */
+    public Chikkar(EntryAnalyzer analyzer) {
         this.dictMgn = DictionaryManager.getInstance();
         this.relationMgn = new RelationManager();
         this.analyzer = analyzer;
@@ -90,11 +115,236 @@ public class Chikkar {
      *             Throws {@link IOException} if error occur when reading dictionary
      */
     public void loadDictionary(Path path) throws IOException {
+        loadDictionary(path, analyzer);
+    }
+
+    /**
+     * Load a dictionary indicated by path, analyzing its words with the given
+     * analyzer instead of the one of this instance, e.g. when that one was
+     * closed after an earlier build.
+     *
+     * @param path
+     *            a dictionary to be loaded.
+     * @param analyzer
+     *            the analyzer of the words of the dictionary
+     * @throws IOException
+     *             Throws {@link IOException} if error occur when reading dictionary
+     */
+    public void loadDictionary(Path path, EntryAnalyzer analyzer) throws IOException {
         if (Files.exists(path)) {
+            snapshot = null;
             dictMgn.addDictionary(relationMgn, path, analyzer, ++dictId);
+            dictionaryIds.put(path, dictId);
         }
     }
 
+    /**
+     * Keep the analyzed lines of dictionaries loaded from now on, so that
+     * {@link #reloadDictionary(Path, EntryAnalyzer)} only analyzes changed lines.
+     * This has to be called before loading any dictionary.
+     */
+    public void enableIncrementalReload() {
+        if (dictId > 0) {
+            throw new IllegalStateException("incremental reload must be enabled before loading dictionaries");
+        }
+        relationMgn.keepDictionaryLines();
+    }
+
+    /**
+     * Read a trailing {@code ^<number>} of the words of dictionaries loaded from
+     * now on as their weight, as in {@code word^0.5}. Otherwise it is part of the
+     * word. This has to be called before loading any dictionary.
+     */
+    public void enableWeights() {
+        if (dictId > 0) {
+            throw new IllegalStateException("weights must be enabled before loading dictionaries");
+        }
+        relationMgn.parseWeights();
+    }
+
+    /**
+     * Load a dictionary again after its file changed. Requires
+     * {@link #enableIncrementalReload()}: only added lines are analyzed and only
+     * the relations of words in added, removed or moved lines are rebuilt. A
+     * dictionary which was not loaded yet is loaded as by
+     * {@link #loadDictionary(Path)}.
+     *
+     * @param path
+     *            a dictionary to be reloaded.
+     * @param analyzer
+     *            An {@link EntryAnalyzer} instance which is used to analyze the
+     *            new lines; it has to analyze text the same way as the one this
+     *            instance was created with.
+     * @return the number of analyzed lines
+     * @throws IOException
+     *             Throws {@link IOException} if error occur when reading dictionary
+     */
+    public int reloadDictionary(Path path, EntryAnalyzer analyzer) throws IOException {
+        if (!relationMgn.keepsDictionaryLines()) {
+            throw new IllegalStateException("incremental reload is not enabled");
+        }
+        Integer id = dictionaryIds.get(path);
+        if (id == null) {
+            int before = dictId;
+            loadDictionary(path, analyzer);
+            return dictId > before ? relationMgn.getDictionaryLines(dictId).size() : 0;
+        }
+        snapshot = null;
+        return dictMgn.updateDictionary(relationMgn, path, analyzer, id);
+    }
+
+    public int reloadDictionary(Path path, Analyzer analyzer) throws IOException {
+        return reloadDictionary(path, EntryAnalyzer.of(analyzer));
+    }
+
+    /**
+     * Check that a dictionary is analyzed the same way by two analyzers, e.g.
+     * that a pre-normalized dictionary matches the analysis chain, on its first
+     * words.
+     *
+     * @param path
+     *            a dictionary to be checked.
+     * @param expected
+     *            the analyzer the dictionary should agree with
+     * @param actual
+     *            the analyzer the dictionary is loaded with
+     * @param sampleSize
+     *            the number of words to check
+     * @param weighted
+     *            whether a trailing {@code ^<number>} of a word is its weight, see
+     *            {@link #enableWeights()}
+     * @return the words which are analyzed differently, each as
+     *         {@code word: expected != actual}
+     * @throws IOException
+     *             Throws {@link IOException} if error occur when reading dictionary
+     */
+    public static List<String> compareAnalysis(Path path, EntryAnalyzer expected, EntryAnalyzer actual,
+            int sampleSize, boolean weighted) throws IOException {
+        List<String> mismatches = new ArrayList<>();
+        for (String word : DictionaryManager.sampleWords(path, sampleSize, weighted)) {
+            List<String> expectedForms = expected.analyze(word);
+            List<String> actualForms = actual.analyze(word);
+            if (!expectedForms.equals(actualForms)) {
+                mismatches.add(word + ": " + printable(expectedForms) + " != " + printable(actualForms));
+            }
+        }
+        return mismatches;
+    }
+
+    private static String printable(List<String> forms) {
+        // shows token boundaries, which are not printable
+        return forms.stream().map(form -> form.replace(ChikkarSynonymMap.WORD_SEPARATOR, '|'))
+                .collect(Collectors.toList()).toString();
+    }
+
+    /**
+     * @return the paths of the loaded dictionaries, in loading order
+     */
+    public List<Path> getDictionaryPaths() {
+        return new ArrayList<>(dictionaryIds.keySet());
+    }
+
+    /**
+     * Get an immutable snapshot of the relations loaded so far. The snapshot is
+     * cached until another dictionary is loaded.
+     *
+     * @return A {@link ChikkarSnapshot} instance
+     */
+    public ChikkarSnapshot snapshot() {
+        ChikkarSnapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = dictMgn.snapshot(relationMgn);
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Run {@link #get(String)} for every query on the common fork-join pool.
+     *
+     * @param queries
+     *            the head words.
+     * @return results in the same order as the queries.
+     */
+    public List<List<String>> getAll(Collection<String> queries) {
+        return getAll(queries, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Run {@link #get(String)} for every query on the given fork-join pool. The
+     * lookups run over a {@link #snapshot()}, so the caller does not need to guard
+     * this instance.
+     *
+     * @param queries
+     *            the head words.
+     * @param pool
+     *            the pool which runs the lookups.
+     * @return results in the same order as the queries.
+     */
+    public List<List<String>> getAll(Collection<String> queries, ForkJoinPool pool) {
+        return snapshot().getAll(queries, pool);
+    }
+
+    /**
+     * Same as {@link #getAll(Collection, ForkJoinPool)}; the stream is collected
+     * before the lookups start.
+     *
+     * @param queries
+     *            the head words.
+     * @param pool
+     *            the pool which runs the lookups.
+     * @return results in the order of the stream.
+     */
+    public List<List<String>> getAll(Stream<String> queries, ForkJoinPool pool) {
+        return getAll(queries.collect(Collectors.toList()), pool);
+    }
+
+    /**
+     * Run {@link #find(String)} for every input on the common fork-join pool.
+     *
+     * @param inputs
+     *            the strings for query.
+     * @return results in the same order as the inputs.
+     */
+    public List<List<String>> findAll(Collection<String> inputs) {
+        return findAll(inputs, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Run {@link #find(String)} for every input on the given fork-join pool. The
+     * lookups run over a {@link #snapshot()}, so the caller does not need to guard
+     * this instance. See {@link ChikkarSnapshot#find(String, int, int)} for how
+     * its results can differ from {@link #find(String)}.
+     *
+     * @param inputs
+     *            the strings for query.
+     * @param pool
+     *            the pool which runs the lookups.
+     * @return results in the same order as the inputs.
+     */
+    public List<List<String>> findAll(Collection<String> inputs, ForkJoinPool pool) {
+        return snapshot().findAll(inputs, pool);
+    }
+
+    /**
+     * Same as {@link #findAll(Collection, ForkJoinPool)}; the stream is collected
+     * before the lookups start.
+     *
+     * @param inputs
+     *            the strings for query.
+     * @param pool
+     *            the pool which runs the lookups.
+     * @return results in the order of the stream.
+     */
+    public List<List<String>> findAll(Stream<String> inputs, ForkJoinPool pool) {
+        return findAll(inputs.collect(Collectors.toList()), pool);
+    }
+
     /**
      * Find synonymous result using active dictionaries specified by this Chikkar
      * instance.
@@ -108,6 +358,23 @@ public class Chikkar {
         return dictMgn.findRelation(relationMgn, query);
     }
 
+    /**
+     * Pass the id of every phrase that is related to the query to the consumer.
+     * The query itself is included only when a dictionary relates it to itself,
+     * e.g. it is not for the key of a directed line such as {@code A => B}. This
+     * is the allocation-free counterpart of {@link #get(String)}; use
+     * {@link #getWord(int)} to access the phrases.
+     *
+     * @param query
+     *            the head word.
+     * @param consumer
+     *            the consumer of word ids.
+     * @return the number of ids passed to the consumer.
+     */
+    public int forEachRelatedId(CharSequence query, IntConsumer consumer) {
+        return dictMgn.forEachRelation(relationMgn, query, true, consumer);
+    }
+
     /**
      * Given a String input, a start position(inclusive), and an end
      * position(exclusive), find the longest sub-string within the indicated
@@ -136,6 +403,36 @@ public class Chikkar {
         return find(input, 0, input.length());
     }
 
+    /**
+     * Find every sub-string of the input that is a single-token word with a
+     * synonymous, including overlapping ones, with one pass over the input. Words
+     * of more than one token are stored with
+     * {@link ChikkarSynonymMap#WORD_SEPARATOR} between their tokens, which raw text
+     * does not contain, so they are never found here; use {@link #match(List)}
+     * over analyzed morphemes for them.
+     *
+     * @param input
+     *            A whole string for query
+     * @return {@code List<SynonymScanner.Match>} in order of their end position.
+     */
+    public List<SynonymScanner.Match> scan(CharSequence input) {
+        return snapshot().scanner().findAll(input);
+    }
+
+    /**
+     * Find the longest sub-strings of the input that are single-token words with a
+     * synonymous, from left to right without overlap, with one pass over the
+     * input. As for {@link #scan(CharSequence)}, words of more than one token are
+     * not found.
+     *
+     * @param input
+     *            A whole string for query
+     * @return {@code List<SynonymScanner.Match>} in order of their position.
+     */
+    public List<SynonymScanner.Match> scanLongest(CharSequence input) {
+        return snapshot().scanner().findLongest(input);
+    }
+
     /**
      * Given a {@code List<Morpheme>} input returned by Sudachi, a start
      * position(inclusive), and a end position(exclusive), find the longest
@@ -152,13 +449,51 @@ public class Chikkar {
      *         longest sub-list of the indicated sub-list.
      */
     public List<String> find(List<Morpheme> input, int start, int end) {
-        List<String> rtn = new ArrayList<>();
-        Optional<String> longest = input.subList(start, end).stream().map(Morpheme::surface)
-                .max(Comparator.comparing(String::length));
-        if (longest.isPresent()) {
-            rtn.addAll(get(longest.get()));
+        String longest = null;
+        for (int i = start; i < end; i++) {
+            String surface = input.get(i).surface();
+            if (longest == null || surface.length() > longest.length()) {
+                longest = surface;
+            }
         }
-        return rtn;
+        if (longest == null) {
+            return new ArrayList<>();
+        }
+        return get(longest);
+    }
+
+    /**
+     * Given a {@code List<Morpheme>} input returned by Sudachi, find the longest
+     * words made of consecutive morphemes from left to right in one pass. Words of
+     * more than one token, separated by {@link ChikkarSynonymMap#WORD_SEPARATOR} in
+     * the dictionary, match a sequence of morphemes.
+     *
+     * @param input
+     *            A {@code List<Morpheme>} returned by Sudachi
+     * @return {@code List<SynonymScanner.Match>} in order of their position; start
+     *         and end of each match are positions in the list.
+     */
+    public List<SynonymScanner.Match> match(List<Morpheme> input) {
+        return match(input, 0, input.size(), Morpheme::surface);
+    }
+
+    /**
+     * Same as {@link #match(List)} but within the indicated sub-list, comparing the
+     * given form of each morpheme with the words, e.g.
+     * {@link Morpheme#normalizedForm()} when dictionaries are normalized.
+     *
+     * @param input
+     *            A {@code List<Morpheme>} returned by Sudachi
+     * @param start
+     *            A position indicate the starting point in the given list
+     * @param end
+     *            A position indicate the ending point in the given list
+     * @param form
+     *            the form of a morpheme to match with words
+     * @return {@code List<SynonymScanner.Match>} in order of their position.
+     */
+    public List<SynonymScanner.Match> match(List<Morpheme> input, int start, int end, Function<Morpheme, String> form) {
+        return snapshot().scanner().findLongest(input, start, end, form);
     }
 
     /**
@@ -172,6 +507,29 @@ public class Chikkar {
         return DictionaryManager.getInstance().getWordsFromId(id);
     }
 
+    /**
+     * Get the word which has the specified id. The stored word is returned as is,
+     * so no copy is made.
+     *
+     * @param id
+     *            An integer which stands for the word id.
+     * @return the word which has the specified id.
+     */
+    public CharSequence getWord(int id) {
+        return dictMgn.getWord(id);
+    }
+
+    /**
+     * Get the id of a word, by which the words related to it refer to it.
+     *
+     * @param word
+     *            the word
+     * @return the id, or -1 if no dictionary has the word
+     */
+    public int getWordId(CharSequence word) {
+        return dictMgn.getWordId(word);
+    }
+
     /**
      * Get all words stored in dictionary in dictionary order
      *
@@ -181,6 +539,27 @@ public class Chikkar {
         return DictionaryManager.getInstance().getSortedKeys();
     }
 
+    /**
+     * Get the words which have synonyms in the dictionaries of this instance in
+     * code point order, the order in which they are added to the FST.
+     *
+     * @return List of words
+     */
+    public List<String> getSortedRelationKeys() {
+        return dictMgn.getSortedKeys(relationMgn);
+    }
+
+    /**
+     * Pass each word which has synonyms in the dictionaries of this instance to
+     * the consumer, in no particular order and possibly more than once.
+     *
+     * @param consumer
+     *            The consumer of words.
+     */
+    public void forEachRelationKey(Consumer<String> consumer) {
+        dictMgn.forEachKey(relationMgn, consumer);
+    }
+
     /**
      * Get all synonym id of given query word. A {@code List<Integer>} is returned.
      *
@@ -191,4 +570,44 @@ public class Chikkar {
     public List<Integer> getSynonymId(String query) {
         return dictMgn.findSynonymId(relationMgn, query);
     }
+
+    /**
+     * Get all synonym id of given query word as a primitive array. This is the
+     * unboxed counterpart of {@link #getSynonymId(String)}.
+     *
+     * @param query
+     *            the head word.
+     * @return An {@code int[]}, empty if the query has no synonym.
+     */
+    public int[] getSynonymIds(CharSequence query) {
+        return dictMgn.findSynonymIds(relationMgn, query);
+    }
+
+    /**
+     * Get the weights of all synonyms of given query word, in the same order as
+     * {@link #getSynonymIds(CharSequence)}. A weight is given in the dictionary
+     * after the word, as in {@code word^0.5}, and is
+     * {@link RelationManager#DEFAULT_WEIGHT} otherwise.
+     *
+     * @param query
+     *            the head word.
+     * @return A {@code float[]}, empty if the query has no synonym.
+     */
+    public float[] getSynonymWeights(CharSequence query) {
+        return dictMgn.findSynonymWeights(relationMgn, query);
+    }
+
+    /**
+     * Pass all synonym id of given query word to the consumer. Nothing is allocated
+     * when the query is a {@link String}.
+     *
+     * @param query
+     *            the head word.
+     * @param consumer
+     *            the consumer of synonym ids.
+     * @return the number of ids passed to the consumer.
+     */
+    public int forEachSynonymId(CharSequence query, IntConsumer consumer) {
+        return dictMgn.forEachRelation(relationMgn, query, false, consumer);
+    }
 }
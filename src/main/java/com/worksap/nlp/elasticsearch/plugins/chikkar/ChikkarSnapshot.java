@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.chikkar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+
+import org.trie4j.MapTrie;
+import org.trie4j.patricia.MapPatriciaTrie;
+
+/**
+ * An immutable copy of the relations of a {@link Chikkar} instance. Unlike
+ * {@link Chikkar}, a snapshot is not affected by dictionaries loaded later, so
+ * it can be queried from many threads at the same time. The batch methods use
+ * this to fan out lookups over a {@link ForkJoinPool}.
+ */
+public final class ChikkarSnapshot {
+    // number of queries processed by one fork-join task without splitting
+    private static final int BATCH_THRESHOLD = 256;
+
+    private final String[] keys;
+    private final int[] keyIds;
+    private final int[][] keyRelations;
+    private final MapTrie<int[]> relations;
+    private final String[] words;
+    private volatile SynonymScanner scanner;
+
+    ChikkarSnapshot(String[] keys, int[] keyIds, int[][] keyRelations, String[] words) {
+        this.keys = keys;
+        this.keyIds = keyIds;
+        this.keyRelations = keyRelations;
+        this.words = words;
+        this.relations = new MapPatriciaTrie<>();
+        for (int i = 0; i < keys.length; i++) {
+            relations.insert(keys[i], keyRelations[i]);
+        }
+    }
+
+    /**
+     * Get the word which has the specified id.
+     *
+     * @param id
+     *            An integer which stands for the word id.
+     * @return the word which has the specified id.
+     */
+    public String getWord(int id) {
+        return words[id];
+    }
+
+    /**
+     * Get the scanner over all words which have a synonymous in this snapshot. The
+     * scanner is built on first use.
+     *
+     * @return A {@link SynonymScanner} instance
+     */
+    public SynonymScanner scanner() {
+        SynonymScanner current = scanner;
+        if (current == null) {
+            synchronized (this) {
+                current = scanner;
+                if (current == null) {
+                    current = new SynonymScanner(keys, keyIds, keyRelations);
+                    scanner = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Find synonymous result, same as {@link Chikkar#get(String)}.
+     *
+     * @param query
+     *            the head word.
+     * @return {@code List<String>} List of phrases that are synonymous of the given
+     *         one.
+     */
+    public List<String> get(String query) {
+        int[] ids = relations.get(query);
+        if (ids == null) {
+            return new ArrayList<>();
+        }
+        List<String> rtn = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            rtn.add(words[id]);
+        }
+        return rtn;
+    }
+
+    /**
+     * Find synonymous result of the longest sub-string which starts at the given
+     * position and has a synonymous in this snapshot. Unlike
+     * {@link Chikkar#find(String, int, int)}, which takes the longest word of all
+     * loaded dictionaries and returns nothing when that word has no synonymous,
+     * only words with synonyms are considered here, so a shorter word with
+     * synonyms is found even if a longer word without any starts at the same
+     * position.
+     *
+     * @param input
+     *            A whole string for query
+     * @param start
+     *            A position indicate the starting point in the given query string
+     * @param end
+     *            A position indicate the ending point in the given query string
+     * @return {@code List<String>} List of phrases that are synonymous of the
+     *         longest sub-string of the indicated sub-string.
+     */
+    public List<String> find(String input, int start, int end) {
+        StringBuilder longest = new StringBuilder();
+        if (relations.findLongestWord(input, start, end, longest) != start) {
+            return new ArrayList<>();
+        }
+        return get(longest.toString());
+    }
+
+    /**
+     * Same as {@link #find(String, int, int)} over the whole input.
+     *
+     * @param input
+     *            A whole string for query
+     * @return {@code List<String>} List of phrases that are synonymous of the
+     *         longest prefix of the input which has a synonymous.
+     */
+    public List<String> find(String input) {
+        return find(input, 0, input.length());
+    }
+
+    /**
+     * Pass each word which has a synonymous in this snapshot to the consumer, as
+     * its id with the ids of the words related to it, which may include its own
+     * id. The arrays are not copied, so they must not be modified.
+     *
+     * @param consumer
+     *            receives the ids of the related words and the id of the word
+     */
+    public void forEachRelation(ObjIntConsumer<int[]> consumer) {
+        for (int i = 0; i < keyIds.length; i++) {
+            consumer.accept(keyRelations[i], keyIds[i]);
+        }
+    }
+
+    /**
+     * Run {@link #get(String)} for every query in parallel.
+     *
+     * @param queries
+     *            the head words.
+     * @param pool
+     *            the pool which runs the lookups.
+     * @return results in the same order as the queries.
+     */
+    public List<List<String>> getAll(Collection<String> queries, ForkJoinPool pool) {
+        return runBatch(queries, this::get, pool);
+    }
+
+    /**
+     * Run {@link #find(String)} for every input in parallel.
+     *
+     * @param inputs
+     *            the strings for query.
+     * @param pool
+     *            the pool which runs the lookups.
+     * @return results in the same order as the inputs.
+     */
+    public List<List<String>> findAll(Collection<String> inputs, ForkJoinPool pool) {
+        return runBatch(inputs, this::find, pool);
+    }
+
+    private static List<List<String>> runBatch(Collection<String> queries, Function<String, List<String>> lookup,
+            ForkJoinPool pool) {
+        String[] in = queries.toArray(new String[0]);
+        if (in.length == 0) {
+            return Collections.emptyList();
+        }
+        @SuppressWarnings("unchecked")
+        List<String>[] out = new List[in.length];
+        try {
+            pool.submit(new BatchAction(in, out, lookup, 0, in.length)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while running batch lookup", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("failed to run batch lookup", e.getCause());
+        }
+        return Arrays.asList(out);
+    }
+
+    private static class BatchAction extends RecursiveAction {
+        private final String[] in;
+        private final List<String>[] out;
+        private final Function<String, List<String>> lookup;
+        private final int from;
+        private final int to;
+
+        BatchAction(String[] in, List<String>[] out, Function<String, List<String>> lookup, int from, int to) {
+            this.in = in;
+            this.out = out;
+            this.lookup = lookup;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    out[i] = lookup.apply(in[i]);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BatchAction(in, out, lookup, from, mid), new BatchAction(in, out, lookup, mid, to));
+            }
+        }
+    }
+}
@@ -21,10 +21,21 @@ import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.stream.Stream;
 
 import static java.lang.Character.isDigit;
@@ -41,13 +52,20 @@ import com.worksap.nlp.elasticsearch.plugins.analysis.ChikkarSynonymMap;
 /**
  * DictionaryManager functions as a dictionary repository, which stores and
  * returns dictionaries. The class is defined as a singleton instance so that
- * all Chikkar instances have access to the same repository.
+ * all Chikkar instances have access to the same repository. Its tries are not
+ * thread safe, so loading and lookups hold the lock of the instance, and
+ * Chikkar instances can be loaded and read on different threads.
  *
  * @author zhao_ya@worksap.co.jp &amp; xiao_w@worksap.co.jp &amp;
  *         liu_to@worksap.co.jp
  */
 
 class DictionaryManager implements Serializable {
+    private static final int[] EMPTY_IDS = new int[0];
+    private static final float[] EMPTY_WEIGHTS = new float[0];
+    // separates the optional weight from a word in dictionary lines, e.g. word^0.5
+    private static final char WEIGHT_SEPARATOR = '^';
+
     EntryManager entryMgn;
 
     private static DictionaryManager dictMgn;
@@ -68,6 +86,60 @@ class DictionaryManager implements Serializable {
         }
     }
 
+    /**
+     * A dictionary line after analysis: the ids of its words, so that the line can
+     * be applied again without analyzing it. Lines are told apart by the MD5
+     * digest of their text.
+     */
+    static final class ParsedLine implements Serializable {
+        private final long digestHigh;
+        private final long digestLow;
+        private final LoadType loadType;
+        private final int[] baseWords;
+        private final int[] relatives;
+        private final Map<Integer, Float> weights;
+
+        ParsedLine(byte[] digest, LoadType loadType, List<Integer> baseWords, List<Integer> relatives,
+                Map<Integer, Float> weights) {
+            this.digestHigh = toLong(digest, 0);
+            this.digestLow = toLong(digest, 8);
+            this.loadType = loadType;
+            this.baseWords = baseWords.stream().mapToInt(Integer::intValue).toArray();
+            this.relatives = relatives.stream().mapToInt(Integer::intValue).toArray();
+            this.weights = weights.isEmpty() ? Collections.emptyMap() : weights;
+        }
+
+        private static long toLong(byte[] bytes, int offset) {
+            long value = 0;
+            for (int i = offset; i < offset + 8; i++) {
+                value = (value << 8) | (bytes[i] & 0xFF);
+            }
+            return value;
+        }
+
+        boolean hasSameText(ParsedLine other) {
+            return digestHigh == other.digestHigh && digestLow == other.digestLow;
+        }
+
+        int digestHash() {
+            return Long.hashCode(digestHigh ^ digestLow);
+        }
+
+        /**
+         * Marks the words whose relation rows this line adds to.
+         */
+        void markRows(BitSet rows) {
+            for (int a : baseWords) {
+                rows.set(a);
+            }
+            if (loadType == LoadType.ADD) {
+                for (int a : relatives) {
+                    rows.set(a);
+                }
+            }
+        }
+    }
+
     private DictionaryManager() {
         entryMgn = new EntryManager();
     }
@@ -77,7 +149,7 @@ class DictionaryManager implements Serializable {
      *
      * @return The singleton instance of DictionaryManager
      */
-    public static DictionaryManager getInstance() {
+    public static synchronized DictionaryManager getInstance() {
         if (dictMgn == null) {
             dictMgn = new DictionaryManager();
         }
@@ -97,16 +169,45 @@ class DictionaryManager implements Serializable {
      *            the head word.
      * @return {@code List<String>} List of phrases that satisfies the relation.
      */
-    public List<String> findRelation(RelationManager relationMgn, String query) {
-        List<String> rtn = new ArrayList<>();
-        if (!entryMgn.retrieveEntry(query).isEmpty()) {
-            int u = entryMgn.retrieveEntry(query).get(0);
-            rtn = entryMgn.getWordsFromId(relationMgn.getRelationMatrix().getRelations(u));
+    public synchronized List<String> findRelation(RelationManager relationMgn, String query) {
+        int u = entryMgn.retrieveFirstEntry(query);
+        if (u < 0) {
+            return new ArrayList<>();
+        }
+        RelationManager.RelationMatrix relationMatrix = relationMgn.getRelationMatrix();
+        int size = relationMatrix.getRelationCount(u);
+        List<String> rtn = new ArrayList<>(size);
+        for (int k = 0; k < size; k++) {
+            rtn.add(entryMgn.getWord(relationMatrix.getRelation(u, k)));
         }
         return rtn;
     }
 
-    public String findLongestWordWithRelation(String input, int start, int end) {
+    /**
+     * Passes the id of every phrase related to the query to the consumer, in the
+     * same order as {@link #findRelation(RelationManager, String)}. Nothing is
+     * allocated when the query is a {@link String}.
+     *
+     * @param relationMgn
+     *            A RelationManager instance which stores the relation per user.
+     * @param query
+     *            the head word.
+     * @param includeSelf
+     *            whether the id of the query itself is passed as well.
+     * @param consumer
+     *            the consumer of related ids, which runs under the lock.
+     * @return the number of ids passed to the consumer.
+     */
+    public synchronized int forEachRelation(RelationManager relationMgn, CharSequence query, boolean includeSelf,
+            IntConsumer consumer) {
+        int u = entryMgn.retrieveFirstEntry(query.toString());
+        if (u < 0) {
+            return 0;
+        }
+        return relationMgn.getRelationMatrix().forEachRelation(u, includeSelf ? -1 : u, consumer);
+    }
+
+    public synchronized String findLongestWordWithRelation(String input, int start, int end) {
         return entryMgn.findLongestWordWithRelation(input, start, end);
     }
 
@@ -115,10 +216,71 @@ class DictionaryManager implements Serializable {
      *
      * @return List of words
      */
-    public List<String> getSortedKeys() {
+    public synchronized List<String> getSortedKeys() {
         return entryMgn.getSortedKeys();
     }
 
+    /**
+     * Pass each word which has relations in the given RelationManager to the
+     * consumer, in no particular order. A word loaded by several dictionaries can
+     * be passed more than once. The words are collected under the lock, and the
+     * consumer runs outside it, so that it does not hold up the other users of
+     * this manager.
+     *
+     * @param relationMgn
+     *            A RelationManager instance which stores the relation per user.
+     * @param consumer
+     *            The consumer of words.
+     */
+    public void forEachKey(RelationManager relationMgn, Consumer<String> consumer) {
+        String[] keys;
+        int count = 0;
+        synchronized (this) {
+            RelationManager.RelationMatrix relationMatrix = relationMgn.getRelationMatrix();
+            int rows = relationMatrix.size();
+            keys = new String[rows];
+            for (int u = 0; u < rows; u++) {
+                if (relationMatrix.getRelationCount(u) > 0) {
+                    keys[count++] = entryMgn.getWord(u);
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            consumer.accept(keys[i]);
+        }
+    }
+
+    /**
+     * Get the words which have relations in the given RelationManager in code
+     * point order, see {@link ChikkarSynonymMap#CODE_POINT_ORDER}. The words are
+     * sorted in parallel. Unlike {@link #getSortedKeys()}, words only loaded by
+     * other users are not visited.
+     *
+     * @param relationMgn
+     *            A RelationManager instance which stores the relation per user.
+     * @return List of distinct words
+     */
+    public synchronized List<String> getSortedKeys(RelationManager relationMgn) {
+        RelationManager.RelationMatrix relationMatrix = relationMgn.getRelationMatrix();
+        int rows = relationMatrix.size();
+        String[] keys = new String[rows];
+        int count = 0;
+        for (int u = 0; u < rows; u++) {
+            if (relationMatrix.getRelationCount(u) > 0) {
+                keys[count++] = entryMgn.getWord(u);
+            }
+        }
+        Arrays.parallelSort(keys, 0, count, ChikkarSynonymMap.CODE_POINT_ORDER);
+        List<String> rtn = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // a word loaded by several dictionaries can have several rows
+            if (i == 0 || !keys[i].equals(keys[i - 1])) {
+                rtn.add(keys[i]);
+            }
+        }
+        return rtn;
+    }
+
     /**
      * Get all synonym id of given query word. A {@code List<Integer>} is returned.
      *
@@ -131,13 +293,132 @@ class DictionaryManager implements Serializable {
      * @return List of all synonym id
      */
     public List<Integer> findSynonymId(RelationManager relationMgn, String query) {
-        List<Integer> entries = entryMgn.retrieveEntry(query);
-        if (!entries.isEmpty()) {
-            int u = entryMgn.retrieveEntry(query).get(0);
-            return relationMgn.getRelationMatrix().getRelations(u).stream().filter(r -> r != u)
-                    .collect(Collectors.toList());
+        int[] ids = findSynonymIds(relationMgn, query);
+        List<Integer> rtn = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            rtn.add(id);
+        }
+        return rtn;
+    }
+
+    /**
+     * Get all synonym id of given query word as a primitive array, without boxing.
+     *
+     * @param relationMgn
+     *            A RelationManager instance which stores the relation per user.
+     * @param query
+     *            the head word.
+     * @return Array of all synonym id, empty if the query has no synonym.
+     */
+    public synchronized int[] findSynonymIds(RelationManager relationMgn, CharSequence query) {
+        int u = entryMgn.retrieveFirstEntry(query.toString());
+        if (u < 0) {
+            return EMPTY_IDS;
+        }
+        RelationManager.RelationMatrix relationMatrix = relationMgn.getRelationMatrix();
+        int size = relationMatrix.getRelationCount(u);
+        if (size == 0) {
+            return EMPTY_IDS;
+        }
+        int[] rtn = new int[size];
+        int count = 0;
+        for (int k = 0; k < size; k++) {
+            int r = relationMatrix.getRelation(u, k);
+            if (r != u) {
+                rtn[count++] = r;
+            }
         }
-        return entries;
+        return count == size ? rtn : Arrays.copyOf(rtn, count);
+    }
+
+    /**
+     * Get the weights of all synonyms of given query word, in the same order as
+     * {@link #findSynonymIds(RelationManager, CharSequence)}.
+     *
+     * @param relationMgn
+     *            A RelationManager instance which stores the relation per user.
+     * @param query
+     *            the head word.
+     * @return Array of weights, {@link RelationManager#DEFAULT_WEIGHT} for words
+     *         without weight in the dictionary.
+     */
+    public synchronized float[] findSynonymWeights(RelationManager relationMgn, CharSequence query) {
+        int u = entryMgn.retrieveFirstEntry(query.toString());
+        if (u < 0) {
+            return EMPTY_WEIGHTS;
+        }
+        RelationManager.RelationMatrix relationMatrix = relationMgn.getRelationMatrix();
+        int size = relationMatrix.getRelationCount(u);
+        float[] rtn = new float[size];
+        int count = 0;
+        for (int k = 0; k < size; k++) {
+            if (relationMatrix.getRelation(u, k) != u) {
+                rtn[count++] = relationMatrix.getRelationWeight(u, k);
+            }
+        }
+        return count == size ? rtn : Arrays.copyOf(rtn, count);
+    }
+
+    /**
+     * Get the id of a word, namely of its first entry, which relations refer to.
+     *
+     * @param word
+     *            the word
+     * @return the id, or -1 if the word is not stored.
+     */
+    public synchronized int getWordId(CharSequence word) {
+        return entryMgn.retrieveFirstEntry(word.toString());
+    }
+
+    /**
+     * Get the word which has the specified id, without copying it. Unlike the
+     * other lookups, it does not wait for dictionaries being loaded, so filters
+     * can read the words of their outputs meanwhile.
+     *
+     * @param id
+     *            An integer which stands for the word id.
+     * @return the stored word.
+     */
+    public CharSequence getWord(int id) {
+        return entryMgn.getWord(id);
+    }
+
+    /**
+     * Take an immutable copy of the words which have relations in the given
+     * RelationManager. Loading dictionaries is blocked while the copy is taken.
+     *
+     * @param relationMgn
+     *            A RelationManager instance which stores the relation per user.
+     * @return a {@link ChikkarSnapshot} of the relations.
+     */
+    public synchronized ChikkarSnapshot snapshot(RelationManager relationMgn) {
+        RelationManager.RelationMatrix relationMatrix = relationMgn.getRelationMatrix();
+        int rows = relationMatrix.size();
+        List<String> keys = new ArrayList<>();
+        List<Integer> keyIds = new ArrayList<>();
+        List<int[]> relations = new ArrayList<>();
+        int maxId = -1;
+        for (int u = 0; u < rows; u++) {
+            int size = relationMatrix.getRelationCount(u);
+            if (size == 0) {
+                continue;
+            }
+            int[] ids = new int[size];
+            for (int k = 0; k < size; k++) {
+                ids[k] = relationMatrix.getRelation(u, k);
+                maxId = Math.max(maxId, ids[k]);
+            }
+            keys.add(entryMgn.getWord(u));
+            keyIds.add(u);
+            relations.add(ids);
+            maxId = Math.max(maxId, u);
+        }
+        String[] words = new String[maxId + 1];
+        for (int id = 0; id < words.length; id++) {
+            words[id] = entryMgn.getWord(id);
+        }
+        return new ChikkarSnapshot(keys.toArray(new String[0]), keyIds.stream().mapToInt(Integer::intValue).toArray(),
+                relations.toArray(new int[0][]), words);
     }
 
     /**
@@ -147,7 +428,7 @@ class DictionaryManager implements Serializable {
      *            An integer which stands for the word id.
      * @return List of words which have the specified id.
      */
-    public List<String> getWordsFromId(int id) {
+    public synchronized List<String> getWordsFromId(int id) {
         return entryMgn.getWordsFromId(id);
     }
 
@@ -155,26 +436,26 @@ class DictionaryManager implements Serializable {
      * Parse one dictionary line
      *
      * @param analyzer
-     *            An analyzer instance which is used to analyze the entries in
-     *            dictionary.
+     *            An {@link EntryAnalyzer} instance which is used to analyze the
+     *            entries in dictionary.
      * @param line
      *            The line to parse.
+     * @param weighted
+     *            whether a trailing {@code ^<number>} of a word is its weight
      * @param baseWords
      *            A list contains base words of the line
      * @param relatives
      *            A list contains relative words of the line
+     * @param weights
+     *            A map which receives the weight of the words which have one
      * @return LoadResult return load type and semantic tag.
      */
-    LoadResult loadDictionaryLine(Analyzer analyzer, String line, ArrayList<Integer> baseWords,
-            ArrayList<Integer> relatives) {
+    LoadResult loadDictionaryLine(EntryAnalyzer analyzer, String line, boolean weighted,
+            ArrayList<Integer> baseWords, ArrayList<Integer> relatives, Map<Integer, Float> weights) {
         // TODO parse dictionary file, may need modification if dictionary format change
 
         // SKIP
-        if (line.length() < 1)
-            return new LoadResult(LoadType.SKIP);
-        if (line.charAt(0) == '!' && line.charAt(1) == '!')
-            return new LoadResult(LoadType.SKIP);
-        if (isDigit(line.charAt(0)))
+        if (isSkipped(line))
             return new LoadResult(LoadType.SKIP);
 
         // DIRECTED
@@ -185,16 +466,26 @@ class DictionaryManager implements Serializable {
                 String[] temp = directions[i].split(",");
                 for (int j = 0; j < temp.length; j++) {
                     String word = temp[j].trim();
+                    float weight = RelationManager.DEFAULT_WEIGHT;
+                    int weightPos = weighted ? findWeightSeparator(word) : -1;
+                    if (weightPos >= 0) {
+                        weight = Float.parseFloat(word.substring(weightPos + 1));
+                        word = word.substring(0, weightPos).trim();
+                    }
                     if (!word.isEmpty()) {
-                        List<String> resList = analyze(analyzer, word);
+                        List<String> resList = analyzer.analyze(word);
                         for (String res : resList) {
                             if (entryMgn.retrieveEntry(res).isEmpty()) {
                                 entryMgn.insertEntry(res, new Entry());
                             }
+                            int id = entryMgn.retrieveEntry(res).get(0);
                             if (i == 0) {
-                                baseWords.add(entryMgn.retrieveEntry(res).get(0));
+                                baseWords.add(id);
                             } else {
-                                relatives.add(entryMgn.retrieveEntry(res).get(0));
+                                relatives.add(id);
+                                if (weight != RelationManager.DEFAULT_WEIGHT) {
+                                    weights.put(id, weight);
+                                }
                             }
                         }
                     }
@@ -203,30 +494,111 @@ class DictionaryManager implements Serializable {
             return new LoadResult(LoadType.DIRECTED);
         } else {
             String[] words = line.split(",");
-            fillWordsToIds(analyzer, words, baseWords, relatives);
+            fillWordsToIds(analyzer, words, weighted, baseWords, relatives, weights);
             return new LoadResult(LoadType.ADD);
         }
     }
 
-    void fillWordsToIds(Analyzer analyzer, String[] words, ArrayList<Integer> baseWords, ArrayList<Integer> relatives) {
+    void fillWordsToIds(EntryAnalyzer analyzer, String[] words, boolean weighted, ArrayList<Integer> baseWords,
+            ArrayList<Integer> relatives, Map<Integer, Float> weights) {
         for (int i = 0; i < words.length; i++) {
             String word = words[i].trim();
+            float weight = RelationManager.DEFAULT_WEIGHT;
+            int weightPos = weighted ? findWeightSeparator(word) : -1;
+            if (weightPos >= 0) {
+                weight = Float.parseFloat(word.substring(weightPos + 1));
+                word = word.substring(0, weightPos).trim();
+            }
             if (!word.isEmpty()) {
-                List<String> resList = analyze(analyzer, word);
+                List<String> resList = analyzer.analyze(word);
                 for (String res : resList) {
                     if (entryMgn.retrieveEntry(res).isEmpty()) {
                         entryMgn.insertEntry(res, new Entry());
                     }
+                    int id = entryMgn.retrieveEntry(res).get(0);
                     if (i == 0) {
-                        baseWords.add(entryMgn.retrieveEntry(res).get(0));
+                        baseWords.add(id);
                     } else {
-                        relatives.add(entryMgn.retrieveEntry(res).get(0));
+                        relatives.add(id);
+                    }
+                    if (weight != RelationManager.DEFAULT_WEIGHT) {
+                        weights.put(id, weight);
                     }
                 }
             }
         }
     }
 
+    private static boolean isSkipped(String line) {
+        if (line.length() < 1)
+            return true;
+        if (line.charAt(0) == '!' && line.charAt(1) == '!')
+            return true;
+        return isDigit(line.charAt(0));
+    }
+
+    /**
+     * Get the first words of a dictionary, as written in it and without weights.
+     *
+     * @param dictPath
+     *            A dictionary path.
+     * @param sampleSize
+     *            the maximum number of words
+     * @param weighted
+     *            whether a trailing {@code ^<number>} of a word is its weight
+     * @return the distinct words in file order
+     * @throws IOException
+     *             Throws {@link IOException} if error occur when reading dictionary
+     */
+    static List<String> sampleWords(Path dictPath, int sampleSize, boolean weighted) throws IOException {
+        Set<String> sample = new LinkedHashSet<>();
+        try (Stream<String> input = Files.lines(dictPath, StandardCharsets.UTF_8)) {
+            Iterator<String> lines = input.iterator();
+            while (lines.hasNext() && sample.size() < sampleSize) {
+                String line = lines.next();
+                if (isSkipped(line)) {
+                    continue;
+                }
+                for (String part : line.split("=>")) {
+                    for (String word : part.split(",")) {
+                        word = word.trim();
+                        int weightPos = weighted ? findWeightSeparator(word) : -1;
+                        if (weightPos >= 0) {
+                            word = word.substring(0, weightPos).trim();
+                        }
+                        if (!word.isEmpty() && sample.size() < sampleSize) {
+                            sample.add(word);
+                        }
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(sample);
+    }
+
+    /**
+     * Finds the separator of an optional weight at the end of a dictionary word, as
+     * in {@code word^0.5}, for dictionaries with weights, see
+     * {@link RelationManager#parseWeights()}. A suffix which is not a finite,
+     * non-negative number is part of the word.
+     *
+     * @param word
+     *            A trimmed word of a dictionary line
+     * @return position of the separator, or -1 if the word has no weight
+     */
+    static int findWeightSeparator(String word) {
+        int pos = word.lastIndexOf(WEIGHT_SEPARATOR);
+        if (pos <= 0 || pos == word.length() - 1) {
+            return -1;
+        }
+        try {
+            float weight = Float.parseFloat(word.substring(pos + 1));
+            return Float.isFinite(weight) && weight >= 0 ? pos : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * Add new dictionary into DictionaryManager.
      *
@@ -237,37 +609,164 @@ class DictionaryManager implements Serializable {
      * @param dictPath
      *            A dictionary path.
      * @param analyzer
-     *            An analyzer instance which is used to analyze the entries in
-     *            dictionary. As DictionaryManager is singleton instance, and
+     *            An {@link EntryAnalyzer} instance which is used to analyze the
+     *            entries in dictionary. As DictionaryManager is singleton instance, and
      *            different users may use different analyzers(e.g. Japanese or
      *            English), so we need to pass the specific analyzer instance when
      *            addDictionary.
      * @throws IOException
      *             Throws {@link IOException} if error occur when reading dictionary
      */
-    public synchronized void addDictionary(RelationManager relationMgn, Path dictPath, Analyzer analyzer, int dictId)
-            throws IOException {
+    public synchronized void addDictionary(RelationManager relationMgn, Path dictPath, EntryAnalyzer analyzer,
+            int dictId) throws IOException {
         // set the default relationSet as sparse matrix
         RelationManager.RelationMatrix relationMatrix = relationMgn.getRelationMatrix();
+        final List<ParsedLine> lines = relationMgn.keepsDictionaryLines() ? new ArrayList<>() : null;
+        final MessageDigest md5 = lines == null ? null : newMd5();
+        final boolean weighted = relationMgn.parsesWeights();
 
         try (Stream<String> input = Files.lines(dictPath, StandardCharsets.UTF_8)) {
             input.forEach(line -> {
-                ArrayList<Integer> baseWords = new ArrayList<>();
-                ArrayList<Integer> relatives = new ArrayList<>();
-                LoadResult loadResult = loadDictionaryLine(analyzer, line, baseWords, relatives);
-
-                switch (loadResult.getLoadType()) {
-                case ADD:
-                    addLine(baseWords, relatives, relationMatrix, dictId);
-                    break;
-                case DIRECTED:
-                    addDirectedLine(baseWords, relatives, relationMatrix, dictId);
-                    break;
-                case SKIP:
-                    break;
+                ParsedLine parsed = parseLine(analyzer, line, weighted, md5);
+                applyLine(parsed, relationMatrix, dictId, null);
+                if (lines != null) {
+                    lines.add(parsed);
                 }
             });
         }
+        if (lines != null) {
+            relationMgn.setDictionaryLines(dictId, lines);
+        }
+    }
+
+    /**
+     * Reload a dictionary which was loaded with its lines kept, see
+     * {@link RelationManager#keepDictionaryLines()}. Only lines which are new
+     * since the last load are analyzed. The relation rows of words in added,
+     * removed or moved lines are cleared and filled again by replaying the kept
+     * lines of every dictionary; other rows are left as they are.
+     *
+     * @param relationMgn
+     *            A RelationManager instance which stores the relation per user.
+     * @param dictPath
+     *            A dictionary path, which is read as empty if it does not exist.
+     * @param analyzer
+     *            An {@link EntryAnalyzer} instance which is used to analyze the
+     *            new lines.
+     * @param dictId
+     *            the id the dictionary was loaded with
+     * @return the number of lines analyzed
+     * @throws IOException
+     *             Throws {@link IOException} if error occur when reading dictionary
+     */
+    public synchronized int updateDictionary(RelationManager relationMgn, Path dictPath, EntryAnalyzer analyzer,
+            int dictId) throws IOException {
+        List<ParsedLine> oldLines = relationMgn.getDictionaryLines(dictId);
+        if (oldLines == null) {
+            throw new IllegalStateException("lines of dictionary " + dictPath + " were not kept");
+        }
+        // old lines by text, and their positions to find moved lines
+        Map<Integer, List<ParsedLine>> reusable = new HashMap<>();
+        Map<ParsedLine, Integer> oldPositions = new IdentityHashMap<>();
+        for (int i = oldLines.size() - 1; i >= 0; i--) {
+            ParsedLine line = oldLines.get(i);
+            reusable.computeIfAbsent(line.digestHash(), k -> new ArrayList<>(1)).add(line);
+            oldPositions.put(line, i);
+        }
+
+        List<String> text = Files.exists(dictPath) ? Files.readAllLines(dictPath, StandardCharsets.UTF_8)
+                : Collections.emptyList();
+        List<ParsedLine> lines = new ArrayList<>(text.size());
+        BitSet affected = new BitSet();
+        MessageDigest md5 = newMd5();
+        int analyzed = 0;
+        int lastPosition = -1;
+        for (String line : text) {
+            ParsedLine parsed = takeSameText(reusable, md5.digest(line.getBytes(StandardCharsets.UTF_8)));
+            if (parsed == null) {
+                parsed = parseLine(analyzer, line, relationMgn.parsesWeights(), md5);
+                parsed.markRows(affected);
+                analyzed++;
+            } else {
+                int position = oldPositions.get(parsed);
+                if (position < lastPosition) {
+                    // moved before a line it used to follow, which changes the order of relations
+                    parsed.markRows(affected);
+                }
+                lastPosition = Math.max(lastPosition, position);
+            }
+            lines.add(parsed);
+        }
+        for (List<ParsedLine> removed : reusable.values()) {
+            for (ParsedLine line : removed) {
+                line.markRows(affected);
+            }
+        }
+        relationMgn.setDictionaryLines(dictId, lines);
+
+        if (!affected.isEmpty()) {
+            RelationManager.RelationMatrix relationMatrix = relationMgn.getRelationMatrix();
+            for (int a = affected.nextSetBit(0); a >= 0; a = affected.nextSetBit(a + 1)) {
+                relationMatrix.resetRow(a);
+            }
+            for (Map.Entry<Integer, List<ParsedLine>> dictionary : relationMgn.getAllDictionaryLines().entrySet()) {
+                for (ParsedLine line : dictionary.getValue()) {
+                    applyLine(line, relationMatrix, dictionary.getKey(), affected);
+                }
+            }
+        }
+        return analyzed;
+    }
+
+    private static ParsedLine takeSameText(Map<Integer, List<ParsedLine>> reusable, byte[] digest) {
+        ParsedLine probe = new ParsedLine(digest, LoadType.SKIP, Collections.emptyList(), Collections.emptyList(),
+                Collections.emptyMap());
+        List<ParsedLine> candidates = reusable.get(probe.digestHash());
+        if (candidates != null) {
+            // candidates are in reverse file order, so the first old copy of the line is reused first
+            for (int i = candidates.size() - 1; i >= 0; i--) {
+                if (candidates.get(i).hasSameText(probe)) {
+                    return candidates.remove(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    private ParsedLine parseLine(EntryAnalyzer analyzer, String line, boolean weighted, MessageDigest md5) {
+        ArrayList<Integer> baseWords = new ArrayList<>();
+        ArrayList<Integer> relatives = new ArrayList<>();
+        Map<Integer, Float> weights = new HashMap<>();
+        LoadResult loadResult = loadDictionaryLine(analyzer, line, weighted, baseWords, relatives, weights);
+        byte[] digest = md5 == null ? new byte[16] : md5.digest(line.getBytes(StandardCharsets.UTF_8));
+        return new ParsedLine(digest, loadResult.getLoadType(), baseWords, relatives, weights);
+    }
+
+    /**
+     * Adds the relations of a line.
+     *
+     * @param rows
+     *            the words whose relation rows are updated, or null for all
+     */
+    void applyLine(ParsedLine line, RelationManager.RelationMatrix relationMatrix, int dictId, BitSet rows) {
+        switch (line.loadType) {
+        case ADD:
+            addLine(line.baseWords, line.relatives, line.weights, relationMatrix, dictId, rows);
+            break;
+        case DIRECTED:
+            addDirectedLine(line.baseWords, line.relatives, line.weights, relationMatrix, dictId, rows);
+            break;
+        case SKIP:
+            break;
+        }
     }
 
     /**
@@ -280,11 +779,7 @@ class DictionaryManager implements Serializable {
      *            input text
      * @return List of analyzed result text
      */
-    List<String> analyze(Analyzer analyzer, String text) {
-        if (analyzer == null) {
-            return Collections.singletonList(text);
-        }
-
+    static List<String> analyze(Analyzer analyzer, String text) {
         CharsRefBuilder reuse = new CharsRefBuilder();
         reuse.clear();
 
@@ -335,20 +830,28 @@ class DictionaryManager implements Serializable {
         return tlist;
     }
 
-    void addLine(ArrayList<Integer> baseWords, ArrayList<Integer> relatives,
-            RelationManager.RelationMatrix relationMatrix, int dictId) {
-        ArrayList<Integer> words = new ArrayList<>();
-        words.addAll(baseWords);
-        words.addAll(relatives);
-        words.forEach(a -> words.forEach(b -> {
-            relationMatrix.add(a, b, dictId);
-        }));
+    private static void addLine(int[] baseWords, int[] relatives, Map<Integer, Float> weights,
+            RelationManager.RelationMatrix relationMatrix, int dictId, BitSet rows) {
+        int[] words = new int[baseWords.length + relatives.length];
+        System.arraycopy(baseWords, 0, words, 0, baseWords.length);
+        System.arraycopy(relatives, 0, words, baseWords.length, relatives.length);
+        for (int a : words) {
+            if (rows == null || rows.get(a)) {
+                for (int b : words) {
+                    relationMatrix.add(a, b, dictId, weights.getOrDefault(b, RelationManager.DEFAULT_WEIGHT));
+                }
+            }
+        }
     }
 
-    void addDirectedLine(ArrayList<Integer> baseWords, ArrayList<Integer> relatives,
-            RelationManager.RelationMatrix relationMatrix, int dictId) {
-        baseWords.forEach(a -> relatives.forEach(b -> {
-            relationMatrix.add(a, b, dictId);
-        }));
+    private static void addDirectedLine(int[] baseWords, int[] relatives, Map<Integer, Float> weights,
+            RelationManager.RelationMatrix relationMatrix, int dictId, BitSet rows) {
+        for (int a : baseWords) {
+            if (rows == null || rows.get(a)) {
+                for (int b : relatives) {
+                    relationMatrix.add(a, b, dictId, weights.getOrDefault(b, RelationManager.DEFAULT_WEIGHT));
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.chikkar;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.Analyzer;
+
+import com.worksap.nlp.elasticsearch.plugins.analysis.ChikkarSynonymMap;
+
+/**
+ * Turns a word of a dictionary line into the form stored in Chikkar: its
+ * tokens, as produced by the analysis chain in front of the synonym filter,
+ * joined with {@link ChikkarSynonymMap#WORD_SEPARATOR}.
+ */
+@FunctionalInterface
+public interface EntryAnalyzer extends Closeable {
+
+    /**
+     * Analyze a dictionary word.
+     *
+     * @param word
+     *            A trimmed, non-empty word of a dictionary line
+     * @return the analyzed forms of the word, empty if it has no token
+     */
+    List<String> analyze(String word);
+
+    /**
+     * Release the resources of this instance once the dictionaries are loaded.
+     * Nothing is released by default.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Get an instance which runs the given analyzer over each word.
+     *
+     * @param analyzer
+     *            An {@link Analyzer} instance, or null to keep words as they are
+     * @return An {@link EntryAnalyzer} instance
+     */
+    static EntryAnalyzer of(Analyzer analyzer) {
+        if (analyzer == null) {
+            return Collections::singletonList;
+        }
+        return word -> DictionaryManager.analyze(analyzer, word);
+    }
+
+    /**
+     * Get an instance for dictionaries which are already normalized and
+     * tokenized: each word is split into tokens at the separator, and no
+     * analysis runs.
+     *
+     * @param tokenSeparator
+     *            the string between tokens, or null for runs of whitespace
+     * @return An {@link EntryAnalyzer} instance
+     */
+    static EntryAnalyzer preTokenized(String tokenSeparator) {
+        if (tokenSeparator != null && tokenSeparator.isEmpty()) {
+            throw new IllegalArgumentException("token separator must not be empty");
+        }
+        final Pattern separator = tokenSeparator == null ? Pattern.compile("\\s+")
+                : Pattern.compile(Pattern.quote(tokenSeparator));
+        return word -> {
+            StringBuilder joined = new StringBuilder(word.length());
+            for (String token : separator.split(word)) {
+                token = token.trim();
+                if (!token.isEmpty()) {
+                    if (joined.length() > 0) {
+                        joined.append(ChikkarSynonymMap.WORD_SEPARATOR);
+                    }
+                    joined.append(token);
+                }
+            }
+            return joined.length() == 0 ? Collections.emptyList() : Collections.singletonList(joined.toString());
+        };
+    }
+}
@@ -28,11 +28,14 @@ import org.trie4j.patricia.MapPatriciaTrie;
 
 class EntryManager implements Serializable {
     private MapTrie<List<Entry>> vocabulary;
-    private List<String> id2word;
+    // words by id; a grown array is only published after its words are set, so
+    // words are read without the lock of the DictionaryManager
+    private volatile String[] id2word;
+    private int wordCount;
 
     public EntryManager() {
         vocabulary = new MapPatriciaTrie<>();
-        id2word = new ArrayList<>();
+        id2word = new String[16];
     }
 
     /**
@@ -53,9 +56,14 @@ class EntryManager implements Serializable {
         if (!vocabulary.contains(input)) {
             vocabulary.insert(input, new ArrayList<>());
         }
-        entry.setId(id2word.size());
+        entry.setId(wordCount);
         vocabulary.get(input).add(entry);
-        id2word.add(input);
+        String[] words = id2word;
+        if (wordCount == words.length) {
+            words = Arrays.copyOf(words, words.length << 1);
+        }
+        words[wordCount++] = input;
+        id2word = words;
     }
 
     List<Entry> getEntries(String input) {
@@ -84,6 +92,32 @@ class EntryManager implements Serializable {
         return entries.stream().map(Entry::getId).collect(Collectors.toList());
     }
 
+    /**
+     * This method retrieves the ID of the first `Entry` associated with the given
+     * `input` String without creating any intermediate collection.
+     *
+     * @param input
+     *            The String that the user wants to query.
+     * @return the first Entry ID, or -1 if the String is not stored.
+     */
+    int retrieveFirstEntry(String input) {
+        List<Entry> entries = vocabulary.get(input);
+        if (entries == null || entries.isEmpty())
+            return -1;
+        return entries.get(0).getId();
+    }
+
+    /**
+     * This method returns the stored String of the given Entry ID as is.
+     *
+     * @param id
+     *            Entry ID for query.
+     * @return the stored String.
+     */
+    String getWord(int id) {
+        return id2word[id];
+    }
+
     /**
      * This method returns the corresponding String from a given list of Entry ID.
      *
@@ -92,7 +126,7 @@ class EntryManager implements Serializable {
      * @return {@code List<String>} List of Strings for the result.
      */
     List<String> getWordsFromId(List<Integer> ids) {
-        return ids.stream().map(i -> id2word.get(i)).collect(Collectors.toList());
+        return ids.stream().map(this::getWord).collect(Collectors.toList());
     }
 
     List<String> getWordsFromId(int id) {
@@ -109,6 +143,6 @@ class EntryManager implements Serializable {
     }
 
     List<String> getSortedKeys() {
-        return id2word.stream().distinct().sorted().collect(Collectors.toList());
+        return Arrays.stream(id2word, 0, wordCount).distinct().sorted().collect(Collectors.toList());
     }
 }
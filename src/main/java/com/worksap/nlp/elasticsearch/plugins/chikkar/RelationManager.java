@@ -18,13 +18,25 @@ package com.worksap.nlp.elasticsearch.plugins.chikkar;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.function.IntConsumer;
 
 public class RelationManager implements Serializable {
+    /** weight of a relation which has no weight in the dictionary */
+    public static final float DEFAULT_WEIGHT = 1.0f;
+
     RelationMatrix relationMatrix;
+    // parsed lines of each dictionary by dictId, only kept for incremental reload
+    private TreeMap<Integer, List<DictionaryManager.ParsedLine>> dictionaryLines;
+    private boolean parsesWeights;
 
     public static RelationManager clone(RelationManager obj) {
         RelationManager newObj = new RelationManager();
         newObj.relationMatrix = obj.relationMatrix.createCopy();
+        newObj.parsesWeights = obj.parsesWeights;
+        if (obj.dictionaryLines != null) {
+            // lists are replaced rather than modified, so they can be shared
+            newObj.dictionaryLines = new TreeMap<>(obj.dictionaryLines);
+        }
         return newObj;
     }
 
@@ -41,16 +53,138 @@ public class RelationManager implements Serializable {
             relationMatrix.clear();
             relationMatrix = null;
         }
+        dictionaryLines = null;
+    }
+
+    /**
+     * Read a trailing {@code ^<number>} of the words of dictionaries loaded from
+     * now on as their weight, as in {@code word^0.5}.
+     */
+    void parseWeights() {
+        parsesWeights = true;
+    }
+
+    boolean parsesWeights() {
+        return parsesWeights;
+    }
+
+    /**
+     * Keep the parsed lines of dictionaries loaded from now on, so that they can
+     * be reloaded incrementally.
+     */
+    void keepDictionaryLines() {
+        if (dictionaryLines == null) {
+            dictionaryLines = new TreeMap<>();
+        }
+    }
+
+    boolean keepsDictionaryLines() {
+        return dictionaryLines != null;
+    }
+
+    /**
+     * Get the parsed lines of a dictionary.
+     *
+     * @param dictId
+     *            the id of the dictionary
+     * @return the lines in file order, or null if they were not kept
+     */
+    List<DictionaryManager.ParsedLine> getDictionaryLines(int dictId) {
+        return dictionaryLines == null ? null : dictionaryLines.get(dictId);
+    }
+
+    void setDictionaryLines(int dictId, List<DictionaryManager.ParsedLine> lines) {
+        dictionaryLines.put(dictId, lines);
+    }
+
+    /**
+     * @return the parsed lines of all dictionaries, by dictId in loading order
+     */
+    SortedMap<Integer, List<DictionaryManager.ParsedLine>> getAllDictionaryLines() {
+        return Collections.unmodifiableSortedMap(dictionaryLines);
+    }
+
+    /**
+     * Relation ids of one word, stored as primitive ints. The most recently added
+     * id is the first relation, so ids are kept in reverse order and appended at
+     * the tail of the array. Weights are kept in a parallel array, which is only
+     * allocated once a relation has a weight other than {@link #DEFAULT_WEIGHT}.
+     */
+    static class RelationRow implements Serializable {
+        private static final int[] EMPTY = new int[0];
+
+        private int[] ids = EMPTY;
+        private float[] weights;
+        private int size;
+
+        RelationRow createCopy() {
+            RelationRow obj = new RelationRow();
+            obj.ids = size == 0 ? EMPTY : Arrays.copyOf(ids, size);
+            obj.weights = weights == null ? null : Arrays.copyOf(weights, size);
+            obj.size = size;
+            return obj;
+        }
+
+        void addFirst(int id) {
+            addFirst(id, DEFAULT_WEIGHT);
+        }
+
+        void addFirst(int id, float weight) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(4, size + (size >> 1)));
+            }
+            if (weights == null && weight != DEFAULT_WEIGHT) {
+                weights = new float[ids.length];
+                Arrays.fill(weights, 0, size, DEFAULT_WEIGHT);
+            }
+            if (weights != null) {
+                if (weights.length < ids.length) {
+                    weights = Arrays.copyOf(weights, ids.length);
+                }
+                weights[size] = weight;
+            }
+            ids[size++] = id;
+        }
+
+        boolean remove(int id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+                    if (weights != null) {
+                        System.arraycopy(weights, i + 1, weights, i, size - i - 1);
+                    }
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int i) {
+            return ids[size - 1 - i];
+        }
+
+        float getWeight(int i) {
+            return weights == null ? DEFAULT_WEIGHT : weights[size - 1 - i];
+        }
     }
 
     class RelationMatrix implements Serializable {
-        private List<LinkedList<Integer>> matrix = new ArrayList<>();
+        private List<RelationRow> matrix = new ArrayList<>();
         private Map<Integer, Integer> dictTag = new HashMap<>();
 
         RelationMatrix createCopy() {
             RelationMatrix obj = new RelationMatrix();
-            for (LinkedList<Integer> ll : this.matrix) {
-                obj.matrix.add((LinkedList<Integer>) ll.clone());
+            for (RelationRow row : this.matrix) {
+                obj.matrix.add(row.createCopy());
             }
             for (Map.Entry<Integer, Integer> entry : this.dictTag.entrySet()) {
                 obj.dictTag.put(entry.getKey(), entry.getValue());
@@ -64,10 +198,14 @@ public class RelationManager implements Serializable {
         }
 
         void add(int a, int b, int dictId) {
+            add(a, b, dictId, DEFAULT_WEIGHT);
+        }
+
+        void add(int a, int b, int dictId, float weight) {
             while (matrix.size() < a + 1) {
-                matrix.add(new LinkedList<>());
+                matrix.add(new RelationRow());
             }
-            LinkedList<Integer> aRelation = matrix.get(a);
+            RelationRow aRelation = matrix.get(a);
             if (dictTag.containsKey(a)) {
                 if (dictTag.get(a) != dictId) {
                     aRelation.clear();
@@ -77,20 +215,114 @@ public class RelationManager implements Serializable {
                 dictTag.put(a, dictId);
             }
             delete(a, b);
-            aRelation.addFirst(b);
+            aRelation.addFirst(b, weight);
+        }
+
+        /**
+         * Remove all relations of the word with the specified id, as if no
+         * dictionary had added any.
+         *
+         * @param a
+         *            An integer which stands for the word id.
+         */
+        void resetRow(int a) {
+            if (matrix.size() > a) {
+                matrix.get(a).clear();
+            }
+            dictTag.remove(a);
         }
 
         boolean delete(int a, int b) {
             if (matrix.size() < a + 1)
                 return false;
-            LinkedList<Integer> aRelation = matrix.get(a);
-            return aRelation.removeIf(e -> e == b);
+            return matrix.get(a).remove(b);
+        }
+
+        List<Integer> getRelations(int i) {
+            int size = getRelationCount(i);
+            List<Integer> rtn = new ArrayList<>(size);
+            for (int k = 0; k < size; k++) {
+                rtn.add(matrix.get(i).get(k));
+            }
+            return rtn;
         }
 
-        LinkedList<Integer> getRelations(int i) {
+        /**
+         * Get the number of rows, namely one more than the largest word id which
+         * has ever had a relation.
+         *
+         * @return the number of rows.
+         */
+        int size() {
+            return matrix.size();
+        }
+
+        /**
+         * Get the number of relations of the word with the specified id.
+         *
+         * @param i
+         *            An integer which stands for the word id.
+         * @return the number of related ids, 0 if the word has no relation.
+         */
+        int getRelationCount(int i) {
             if (matrix.size() <= i)
-                return new LinkedList<>();
-            return matrix.get(i);
+                return 0;
+            return matrix.get(i).size();
+        }
+
+        /**
+         * Get the k-th relation of the word with the specified id, in the same order
+         * as {@link #getRelations(int)}.
+         *
+         * @param i
+         *            An integer which stands for the word id.
+         * @param k
+         *            Index of the relation, less than {@link #getRelationCount(int)}.
+         * @return the related id.
+         */
+        int getRelation(int i, int k) {
+            return matrix.get(i).get(k);
+        }
+
+        /**
+         * Get the weight of the k-th relation of the word with the specified id.
+         *
+         * @param i
+         *            An integer which stands for the word id.
+         * @param k
+         *            Index of the relation, less than {@link #getRelationCount(int)}.
+         * @return the weight of the relation, {@link #DEFAULT_WEIGHT} if the
+         *         dictionary gives none.
+         */
+        float getRelationWeight(int i, int k) {
+            return matrix.get(i).getWeight(k);
+        }
+
+        /**
+         * Passes each related id of the word with the specified id to the consumer,
+         * skipping {@code exclude}. Nothing is allocated.
+         *
+         * @param i
+         *            An integer which stands for the word id.
+         * @param exclude
+         *            An id which is not passed to the consumer, or -1 to pass all.
+         * @param consumer
+         *            The consumer of related ids.
+         * @return the number of ids passed to the consumer.
+         */
+        int forEachRelation(int i, int exclude, IntConsumer consumer) {
+            if (matrix.size() <= i)
+                return 0;
+            RelationRow row = matrix.get(i);
+            int count = 0;
+            for (int k = 0; k < row.size(); k++) {
+                int id = row.get(k);
+                if (id != exclude) {
+                    consumer.accept(id);
+                    count++;
+                }
+            }
+            return count;
         }
     }
 }
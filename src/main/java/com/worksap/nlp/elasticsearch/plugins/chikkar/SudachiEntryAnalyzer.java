@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.chikkar;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.worksap.nlp.elasticsearch.plugins.analysis.ChikkarSynonymMap;
+import com.worksap.nlp.sudachi.Dictionary;
+import com.worksap.nlp.sudachi.DictionaryFactory;
+import com.worksap.nlp.sudachi.Morpheme;
+import com.worksap.nlp.sudachi.Tokenizer;
+
+/**
+ * An {@link EntryAnalyzer} for the Sudachi tokenizer followed by the
+ * {@code sudachi_normalizedform} filter, which calls the Sudachi tokenizer
+ * directly and takes the normalized forms of the morphemes, instead of running
+ * a token stream for each word.
+ * <p>
+ * The Sudachi dictionary is opened when the first word is analyzed, and is
+ * closed with the tokenizers created from it by {@link #close()}, which the
+ * build of a synonym map calls when it is done. No word can be analyzed after
+ * that.
+ */
+public final class SudachiEntryAnalyzer implements EntryAnalyzer {
+
+    private final String resourcesPath;
+    private final String settings;
+    private final Tokenizer.SplitMode mode;
+    private final boolean discardPunctuation;
+    // guarded by this
+    private Dictionary dictionary;
+    // guarded by this
+    private boolean closed;
+    // Sudachi tokenizers are not thread-safe, so each is taken by one call at a time
+    private final Queue<Tokenizer> tokenizers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor with argument
+     *
+     * @param resourcesPath
+     *            the directory which relative paths of the Sudachi settings are
+     *            resolved against
+     * @param settings
+     *            the Sudachi settings as JSON, merged into the default settings,
+     *            or null for the default settings
+     * @param mode
+     *            the split mode of the tokenizer
+     * @param discardPunctuation
+     *            whether morphemes which are only punctuation are dropped, as
+     *            {@code discard_punctuation} of the tokenizer does
+     */
+    public SudachiEntryAnalyzer(String resourcesPath, String settings, Tokenizer.SplitMode mode,
+            boolean discardPunctuation) {
+        this.resourcesPath = resourcesPath;
+        this.settings = settings;
+        this.mode = mode;
+        this.discardPunctuation = discardPunctuation;
+    }
+
+    private synchronized Tokenizer newTokenizer() {
+        if (closed) {
+            throw new IllegalStateException("Sudachi dictionary in " + resourcesPath + " is closed");
+        }
+        if (dictionary == null) {
+            try {
+                dictionary = new DictionaryFactory().create(resourcesPath, settings, true);
+            } catch (IOException e) {
+                throw new UncheckedIOException("failed to open Sudachi dictionary in " + resourcesPath, e);
+            }
+        }
+        return dictionary.create();
+    }
+
+    @Override
+    public List<String> analyze(String word) {
+        Tokenizer tokenizer = tokenizers.poll();
+        if (tokenizer == null) {
+            tokenizer = newTokenizer();
+        }
+        try {
+            return analyze(tokenizer, word);
+        } finally {
+            tokenizers.offer(tokenizer);
+        }
+    }
+
+    private List<String> analyze(Tokenizer tokenizer, String word) {
+        StringBuilder joined = new StringBuilder(word.length());
+        for (Morpheme morpheme : tokenizer.tokenize(mode, word)) {
+            if (discardPunctuation && isPunctuation(morpheme.surface())) {
+                continue;
+            }
+            String form = morpheme.normalizedForm();
+            if (form.isEmpty()) {
+                // same as an empty token in DictionaryManager#analyze
+                return Collections.emptyList();
+            }
+            if (joined.length() > 0) {
+                joined.append(ChikkarSynonymMap.WORD_SEPARATOR);
+            }
+            joined.append(form);
+        }
+        return joined.length() == 0 ? Collections.emptyList() : Collections.singletonList(joined.toString());
+    }
+
+    /**
+     * Drops the tokenizers and closes the Sudachi dictionary. No word must be
+     * analyzed meanwhile.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        tokenizers.clear();
+        if (dictionary == null) {
+            return;
+        }
+        try {
+            dictionary.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to close Sudachi dictionary in " + resourcesPath, e);
+        } finally {
+            dictionary = null;
+        }
+    }
+
+    /**
+     * @return whether all characters of the surface are spaces, punctuation or
+     *         symbols, the morphemes the Sudachi tokenizer discards
+     */
+    static boolean isPunctuation(String surface) {
+        for (int i = 0; i < surface.length(); i++) {
+            switch (Character.getType(surface.charAt(i))) {
+            case Character.SPACE_SEPARATOR:
+            case Character.LINE_SEPARATOR:
+            case Character.PARAGRAPH_SEPARATOR:
+            case Character.CONTROL:
+            case Character.FORMAT:
+            case Character.DASH_PUNCTUATION:
+            case Character.START_PUNCTUATION:
+            case Character.END_PUNCTUATION:
+            case Character.CONNECTOR_PUNCTUATION:
+            case Character.OTHER_PUNCTUATION:
+            case Character.MATH_SYMBOL:
+            case Character.CURRENCY_SYMBOL:
+            case Character.MODIFIER_SYMBOL:
+            case Character.OTHER_SYMBOL:
+            case Character.INITIAL_QUOTE_PUNCTUATION:
+            case Character.FINAL_QUOTE_PUNCTUATION:
+                break;
+            default:
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.chikkar;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import com.worksap.nlp.elasticsearch.plugins.analysis.ChikkarSynonymMap;
+import com.worksap.nlp.sudachi.Morpheme;
+
+/**
+ * SynonymScanner finds every word which has a synonymous in a text with one
+ * pass. It is an Aho-Corasick automaton built over the words of a
+ * {@link ChikkarSnapshot}: each character moves along the trie of the words or
+ * falls back through failure links, so the cost is linear in the length of the
+ * text plus the number of matches.
+ * <p>
+ * The same trie is also walked over sequences of morphemes joined with
+ * {@link ChikkarSynonymMap#WORD_SEPARATOR}, to match multi-token words. The
+ * methods over raw text only find single-token words, since text does not
+ * contain the separator.
+ */
+public final class SynonymScanner {
+
+    /**
+     * Receives matches found by
+     * {@link SynonymScanner#scan(CharSequence, int, int, MatchHandler)}.
+     */
+    @FunctionalInterface
+    public interface MatchHandler {
+        /**
+         * Called for each match.
+         *
+         * @param start
+         *            start position of the match in the text(inclusive)
+         * @param end
+         *            end position of the match in the text(exclusive)
+         * @param wordId
+         *            id of the matched word
+         */
+        void onMatch(int start, int end, int wordId);
+    }
+
+    @FunctionalInterface
+    private interface KeyHandler {
+        void onMatch(int start, int end, int key);
+    }
+
+    /**
+     * A word found in the text, with its position and synonym ids.
+     */
+    public static final class Match {
+        private final int start;
+        private final int end;
+        private final String word;
+        private final int wordId;
+        private final int[] synonymIds;
+
+        Match(int start, int end, String word, int wordId, int[] synonymIds) {
+            this.start = start;
+            this.end = end;
+            this.word = word;
+            this.wordId = wordId;
+            this.synonymIds = synonymIds;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        public String getWord() {
+            return word;
+        }
+
+        public int getWordId() {
+            return wordId;
+        }
+
+        /**
+         * Get all synonym id of the matched word, same as
+         * {@link Chikkar#getSynonymIds(CharSequence)}.
+         *
+         * @return An {@code int[]}.
+         */
+        public int[] getSynonymIds() {
+            return synonymIds.clone();
+        }
+    }
+
+    private static final int ROOT = 0;
+
+    private final String[] keys;
+    private final int[] keyIds;
+    private final int[][] keyRelations;
+
+    // transitions of node n are edgeLabel/edgeTarget[edgeStart[n], edgeStart[n + 1])
+    // sorted by label
+    private final int[] edgeStart;
+    private final char[] edgeLabel;
+    private final int[] edgeTarget;
+    private final int[] fail;
+    // key which ends at the node, or -1
+    private final int[] output;
+    // nearest node on the failure chain which has an output, or -1
+    private final int[] outputLink;
+
+    SynonymScanner(String[] keys, int[] keyIds, int[][] keyRelations) {
+        this.keys = keys;
+        this.keyIds = keyIds;
+        this.keyRelations = keyRelations;
+
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<Integer> outputs = new ArrayList<>();
+        children.add(new TreeMap<>());
+        outputs.add(-1);
+        int numEdges = 0;
+        for (int key = 0; key < keys.length; key++) {
+            String word = keys[key];
+            if (word.isEmpty()) {
+                continue;
+            }
+            int node = ROOT;
+            for (int i = 0; i < word.length(); i++) {
+                Integer next = children.get(node).get(word.charAt(i));
+                if (next == null) {
+                    next = children.size();
+                    children.get(node).put(word.charAt(i), next);
+                    children.add(new TreeMap<>());
+                    outputs.add(-1);
+                    numEdges++;
+                }
+                node = next;
+            }
+            outputs.set(node, key);
+        }
+
+        int numNodes = children.size();
+        edgeStart = new int[numNodes + 1];
+        edgeLabel = new char[numEdges];
+        edgeTarget = new int[numEdges];
+        output = new int[numNodes];
+        int upto = 0;
+        for (int node = 0; node < numNodes; node++) {
+            edgeStart[node] = upto;
+            for (Map.Entry<Character, Integer> edge : children.get(node).entrySet()) {
+                edgeLabel[upto] = edge.getKey();
+                edgeTarget[upto] = edge.getValue();
+                upto++;
+            }
+            output[node] = outputs.get(node);
+        }
+        edgeStart[numNodes] = upto;
+
+        // breadth first, so failure links always point to finished nodes
+        fail = new int[numNodes];
+        outputLink = new int[numNodes];
+        outputLink[ROOT] = -1;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(ROOT);
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int e = edgeStart[node]; e < edgeStart[node + 1]; e++) {
+                int child = edgeTarget[e];
+                int f = ROOT;
+                if (node != ROOT) {
+                    f = fail[node];
+                    int next;
+                    while ((next = step(f, edgeLabel[e])) < 0 && f != ROOT) {
+                        f = fail[f];
+                    }
+                    f = next < 0 ? ROOT : next;
+                }
+                fail[child] = f;
+                outputLink[child] = output[f] >= 0 ? f : outputLink[f];
+                queue.add(child);
+            }
+        }
+    }
+
+    private int step(int node, char c) {
+        int lo = edgeStart[node];
+        int hi = edgeStart[node + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char label = edgeLabel[mid];
+            if (label < c) {
+                lo = mid + 1;
+            } else if (label > c) {
+                hi = mid - 1;
+            } else {
+                return edgeTarget[mid];
+            }
+        }
+        return -1;
+    }
+
+    private void scanKeys(CharSequence text, int start, int end, KeyHandler handler) {
+        int node = ROOT;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            int next;
+            while ((next = step(node, c)) < 0 && node != ROOT) {
+                node = fail[node];
+            }
+            node = next < 0 ? ROOT : next;
+            for (int n = output[node] >= 0 ? node : outputLink[node]; n >= 0; n = outputLink[n]) {
+                int key = output[n];
+                handler.onMatch(i + 1 - keys[key].length(), i + 1, key);
+            }
+        }
+    }
+
+    /**
+     * Pass every match within the indicated sub-string to the handler, including
+     * overlapping ones. Matches are reported in order of their end position, and
+     * the longest one first for the same end position. No object is allocated
+     * per match.
+     *
+     * @param text
+     *            A whole string for query
+     * @param start
+     *            A position indicate the starting point in the given string
+     * @param end
+     *            A position indicate the ending point in the given string
+     * @param handler
+     *            the receiver of matches
+     */
+    public void scan(CharSequence text, int start, int end, MatchHandler handler) {
+        scanKeys(text, start, end, (s, e, key) -> handler.onMatch(s, e, keyIds[key]));
+    }
+
+    /**
+     * Find every match in the text, including overlapping ones.
+     *
+     * @param text
+     *            the string for query
+     * @return {@code List<Match>} in order of their end position.
+     */
+    public List<Match> findAll(CharSequence text) {
+        List<Match> rtn = new ArrayList<>();
+        scanKeys(text, 0, text.length(), (s, e, key) -> rtn.add(newMatch(s, e, key)));
+        return rtn;
+    }
+
+    /**
+     * Find the longest match from left to right, skipping the text covered by the
+     * previous match, so that matches do not overlap.
+     *
+     * @param text
+     *            the string for query
+     * @return {@code List<Match>} in order of their position.
+     */
+    public List<Match> findLongest(CharSequence text) {
+        int length = text.length();
+        int[] longest = new int[length];
+        Arrays.fill(longest, -1);
+        scanKeys(text, 0, length, (s, e, key) -> {
+            if (longest[s] < 0 || keys[longest[s]].length() < e - s) {
+                longest[s] = key;
+            }
+        });
+
+        List<Match> rtn = new ArrayList<>();
+        int i = 0;
+        while (i < length) {
+            int key = longest[i];
+            if (key < 0) {
+                i++;
+            } else {
+                int end = i + keys[key].length();
+                rtn.add(newMatch(i, end, key));
+                i = end;
+            }
+        }
+        return rtn;
+    }
+
+    /**
+     * Find the longest word made of consecutive morphemes from left to right,
+     * skipping the morphemes covered by the previous match. A word of more than
+     * one token matches when its tokens are the forms of consecutive morphemes.
+     *
+     * @param morphemes
+     *            A {@code List<Morpheme>} returned by Sudachi
+     * @param start
+     *            A position indicate the starting point in the given list
+     * @param end
+     *            A position indicate the ending point in the given list
+     * @param form
+     *            the form of a morpheme to match with words, e.g.
+     *            {@link Morpheme#surface()}
+     * @return {@code List<Match>} in order of their position; start and end of
+     *         each match are positions in the list.
+     */
+    public List<Match> findLongest(List<Morpheme> morphemes, int start, int end, Function<Morpheme, String> form) {
+        List<Match> rtn = new ArrayList<>();
+        int i = start;
+        while (i < end) {
+            int node = ROOT;
+            int matchKey = -1;
+            int matchEnd = -1;
+            for (int j = i; j < end && node >= 0; j++) {
+                if (j > i) {
+                    node = step(node, ChikkarSynonymMap.WORD_SEPARATOR);
+                    if (node < 0) {
+                        break;
+                    }
+                }
+                node = walk(node, form.apply(morphemes.get(j)));
+                if (node >= 0 && output[node] >= 0) {
+                    matchKey = output[node];
+                    matchEnd = j + 1;
+                }
+            }
+            if (matchKey < 0) {
+                i++;
+            } else {
+                rtn.add(newMatch(i, matchEnd, matchKey));
+                i = matchEnd;
+            }
+        }
+        return rtn;
+    }
+
+    // follows the trie without failure links, returns -1 when there is no path
+    private int walk(int node, String token) {
+        for (int i = 0; i < token.length() && node >= 0; i++) {
+            node = step(node, token.charAt(i));
+        }
+        return node;
+    }
+
+    private Match newMatch(int start, int end, int key) {
+        int self = keyIds[key];
+        int[] relations = keyRelations[key];
+        int[] synonymIds = new int[relations.length];
+        int count = 0;
+        for (int id : relations) {
+            if (id != self) {
+                synonymIds[count++] = id;
+            }
+        }
+        return new Match(start, end, keys[key], self, Arrays.copyOf(synonymIds, count));
+    }
+}
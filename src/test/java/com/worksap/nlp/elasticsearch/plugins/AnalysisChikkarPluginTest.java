@@ -24,6 +24,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.worksap.nlp.elasticsearch.plugins.analysis.ChikkarSynonymGraphTokenFilterFactory;
 import com.worksap.nlp.elasticsearch.plugins.analysis.ChikkarSynonymTokenFilterFactory;
@@ -1147,6 +1149,34 @@ public class AnalysisChikkarPluginTest {
         assertSynonymsEquals(expected, result);
     }
 
+    @Test
+    public void testAsyncBuild() throws Exception {
+        Index index = mock(Index.class);
+        when(index.getName()).thenReturn("test");
+        IndexSettings indexSettings = mock(IndexSettings.class);
+        when(indexSettings.getIndex()).thenReturn(index);
+        Environment env = mock(Environment.class);
+        when(env.configFile()).thenReturn(tempFolder.getRoot().toPath());
+        Settings settings = Settings.builder().put("version", "8.0.0").put("system_dict_id", "id10")
+                .put("system_dict", "synonymMergeA.txt").put("async_build", "true").build();
+        when(indexSettings.getSettings()).thenReturn(settings);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            TokenFilterFactory factory = new ChikkarSynonymGraphTokenFilterFactory(indexSettings, env, "plugins",
+                    settings, executor).getChainAwareTokenFilterFactory(new WhitespaceTokenizerFactory(),
+                            Collections.emptyList(), Collections.emptyList(), null);
+
+            List<TokenAttribute> expected = parseSynonyms(chikkarSynonymGraphFactoryA, "曖昧");
+            Collections.sort(expected);
+            List<TokenAttribute> result = parseSynonyms(factory, "曖昧");
+            Collections.sort(result);
+            assertSynonymsEquals(expected, result);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     class WhitespaceTokenizerFactory implements TokenizerFactory {
         @Override
         public String name() {
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.analysis;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.worksap.nlp.elasticsearch.plugins.chikkar.Chikkar;
+
+import org.junit.Test;
+
+public class ChikkarCacheTest {
+
+    @Test
+    public void testIncrementalCacheIsKeptForItsIndices() {
+        ChikkarCache cache = ChikkarCache.getInstance();
+        String key = "testIncrementalCacheIsKeptForItsIndices";
+        cache.retainIncrementalCache(key, "first");
+        cache.retainIncrementalCache(key, "second");
+        Chikkar chikkar = cache.getIncrementalCache(key, () -> new Chikkar(Utils.createWhitespaceAnalyzer()));
+        assertSame(chikkar, cache.getIncrementalCache(key, () -> new Chikkar(Utils.createWhitespaceAnalyzer())));
+
+        // Dropped with the last index using it
+        cache.releaseIncrementalCache("first");
+        assertSame(chikkar, cache.getIncrementalCache(key, () -> new Chikkar(Utils.createWhitespaceAnalyzer())));
+        cache.releaseIncrementalCache("second");
+        assertNotSame(chikkar, cache.getIncrementalCache(key, () -> new Chikkar(Utils.createWhitespaceAnalyzer())));
+    }
+
+    @Test
+    public void testIncrementalCacheWithoutIndex() {
+        // e.g. built after the index was removed
+        ChikkarCache cache = ChikkarCache.getInstance();
+        String key = "testIncrementalCacheWithoutIndex";
+        Chikkar chikkar = cache.getIncrementalCache(key, () -> new Chikkar(Utils.createWhitespaceAnalyzer()));
+        assertNotSame(chikkar, cache.getIncrementalCache(key, () -> new Chikkar(Utils.createWhitespaceAnalyzer())));
+    }
+}
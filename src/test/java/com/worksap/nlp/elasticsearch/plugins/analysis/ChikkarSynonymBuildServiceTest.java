@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ChikkarSynonymBuildServiceTest {
+
+    private static ChikkarSynonymMap newMap() {
+        return new ChikkarSynonymMap(new String[0], null, 0, false, 0);
+    }
+
+    // builds whose key is their fingerprint
+    private static CompletableFuture<ChikkarSynonymMap> getOrBuild(ChikkarSynonymBuildService service, String key,
+            Supplier<ChikkarSynonymMap> build, Executor executor) {
+        return service.getOrBuild(key, () -> key, fingerprint -> build.get(), executor);
+    }
+
+    @Test
+    public void testSharesBuiltMap() throws Exception {
+        ChikkarSynonymBuildService service = new ChikkarSynonymBuildService();
+        AtomicInteger builds = new AtomicInteger();
+        ChikkarSynonymMap first = getOrBuild(service, "a", () -> {
+            builds.incrementAndGet();
+            return newMap();
+        }, null).get();
+        ChikkarSynonymMap second = getOrBuild(service, "a", () -> {
+            builds.incrementAndGet();
+            return newMap();
+        }, null).get();
+        assertSame(first, second);
+        assertEquals(1, builds.get());
+
+        assertNotSame(first, getOrBuild(service, "b", ChikkarSynonymBuildServiceTest::newMap, null).get());
+    }
+
+    @Test
+    public void testSharesRunningBuild() throws Exception {
+        ChikkarSynonymBuildService service = new ChikkarSynonymBuildService();
+        List<Runnable> tasks = new ArrayList<>();
+        CompletableFuture<ChikkarSynonymMap> first = getOrBuild(service, "a", ChikkarSynonymBuildServiceTest::newMap,
+                tasks::add);
+        CompletableFuture<ChikkarSynonymMap> second = getOrBuild(service, "a", ChikkarSynonymBuildServiceTest::newMap,
+                tasks::add);
+        assertSame(first, second);
+        assertFalse(first.isDone());
+        assertEquals(1, tasks.size());
+
+        tasks.get(0).run();
+        assertTrue(second.isDone());
+    }
+
+    @Test
+    public void testRetriesFailedBuild() throws Exception {
+        ChikkarSynonymBuildService service = new ChikkarSynonymBuildService();
+        CompletableFuture<ChikkarSynonymMap> failed = getOrBuild(service, "a", () -> {
+            throw new IllegalArgumentException("failed to build synonyms");
+        }, null);
+        assertTrue(failed.isCompletedExceptionally());
+
+        ChikkarSynonymMap map = newMap();
+        assertSame(map, getOrBuild(service, "a", () -> map, null).get());
+    }
+
+    @Test
+    public void testFingerprintOnBuildThread() throws Exception {
+        ChikkarSynonymBuildService service = new ChikkarSynonymBuildService();
+        List<Runnable> tasks = new ArrayList<>();
+        AtomicInteger fingerprints = new AtomicInteger();
+        CompletableFuture<ChikkarSynonymMap> future = service.getOrBuild("a", () -> {
+            fingerprints.incrementAndGet();
+            return "v1";
+        }, fingerprint -> newMap(), tasks::add);
+        assertEquals(0, fingerprints.get());
+
+        tasks.get(0).run();
+        assertEquals(1, fingerprints.get());
+        assertTrue(future.isDone());
+    }
+
+    @Test
+    public void testRebuildsChangedContent() throws Exception {
+        ChikkarSynonymBuildService service = new ChikkarSynonymBuildService();
+        List<String> builds = new ArrayList<>();
+        Function<String, ChikkarSynonymMap> build = fingerprint -> {
+            builds.add(fingerprint);
+            return newMap();
+        };
+        ChikkarSynonymMap first = service.getOrBuild("a", () -> "v1", build, null).get();
+        ChikkarSynonymMap second = service.getOrBuild("a", () -> "v2", build, null).get();
+        assertNotSame(first, second);
+        assertSame(first, service.getOrBuild("a", () -> "v1", build, null).get());
+        assertEquals(Arrays.asList("v1", "v2"), builds);
+    }
+}
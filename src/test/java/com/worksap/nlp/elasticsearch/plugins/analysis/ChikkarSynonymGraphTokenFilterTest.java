@@ -17,6 +17,8 @@
 package com.worksap.nlp.elasticsearch.plugins.analysis;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -26,10 +28,12 @@ import java.util.Collections;
 import java.util.List;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.core.WhitespaceTokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.KeywordAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
@@ -71,6 +75,10 @@ public class ChikkarSynonymGraphTokenFilterTest {
             Files.copy(getClass().getResourceAsStream("/" + dict), configPath.resolve(dict));
         }
 
+        tokenFilterFactory = createTokenFilterFactory(configPath, dictList);
+    }
+
+    TokenFilterFactory createTokenFilterFactory(Path configPath, List<String> dictList) throws IOException {
         Chikkar chikkar = new Chikkar(analyzer);
         for (String dp : dictList) {
             chikkar.loadDictionary(configPath.resolve(dp));
@@ -78,7 +86,7 @@ public class ChikkarSynonymGraphTokenFilterTest {
         ChikkarSynonymMap.Builder builder = new ChikkarSynonymMap.Builder(true);
         ChikkarSynonymMap synonyms = builder.build(chikkar);
 
-        tokenFilterFactory = new TokenFilterFactory() {
+        return new TokenFilterFactory() {
             @Override
             public String name() {
                 return "chikkar_test";
@@ -211,6 +219,175 @@ public class ChikkarSynonymGraphTokenFilterTest {
         assertSynonymsEquals(expected, result);
     }
 
+    @Test
+    public void testOutputRingWrapsAround() throws Exception {
+        Path configPath = Paths.get(tempFolder.getRoot().getAbsolutePath());
+        Files.write(configPath.resolve("ring.txt"),
+                Arrays.asList("x,y1,y2,y3,y4", "a,b c,d e f,g h,i j,k l"), StandardCharsets.UTF_8);
+        TokenFilterFactory factory = createTokenFilterFactory(configPath, Arrays.asList("ring.txt"));
+
+        // x leaves the head of the output ring at 5, so the 12 outputs of a wrap
+        // around the end of the initial ring of 8 and grow it in the middle
+        String[] words = { "x", "a", "x", "a" };
+        List<TokenAttribute> expected = new ArrayList<>();
+        int position = 0;
+        int offset = 0;
+        for (String word : words) {
+            List<TokenAttribute> tokens = parseSynonyms(factory, word);
+            int length = 0;
+            for (TokenAttribute token : tokens) {
+                expected.add(new TokenAttribute(token.term, token.type, token.position + position,
+                        token.startOffset + offset, token.endOffset + offset, token.posLength));
+                length = Math.max(length, token.position + token.posLength);
+            }
+            position += length;
+            offset += word.length() + 1;
+        }
+        Collections.sort(expected);
+        List<TokenAttribute> result = parseSynonyms(factory, String.join(" ", words));
+        Collections.sort(result);
+        assertSynonymsEquals(expected, result);
+    }
+
+    @Test
+    public void testLookaheadTokensKeepAttributes() throws Exception {
+        Path configPath = Paths.get(tempFolder.getRoot().getAbsolutePath());
+        Files.write(configPath.resolve("lookahead.txt"), Arrays.asList("a b c,x"), StandardCharsets.UTF_8);
+        Chikkar chikkar = new Chikkar(analyzer);
+        chikkar.loadDictionary(configPath.resolve("lookahead.txt"));
+        ChikkarSynonymMap synonyms = new ChikkarSynonymMap.Builder(true).build(chikkar);
+
+        // Marks each token with its index as the type, and every other token as
+        // a keyword, so the lookahead copies must carry all attributes
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream marked = new TokenFilter(tokenizer) {
+            private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+            private final KeywordAttribute keywordAtt = addAttribute(KeywordAttribute.class);
+            private int index;
+
+            @Override
+            public boolean incrementToken() throws IOException {
+                if (!input.incrementToken()) {
+                    return false;
+                }
+                typeAtt.setType("t" + index);
+                keywordAtt.setKeyword(index % 2 == 1);
+                index++;
+                return true;
+            }
+
+            @Override
+            public void reset() throws IOException {
+                super.reset();
+                index = 0;
+            }
+        };
+        TokenStream stream = new ChikkarSynonymGraphTokenFilter(marked, synonyms, false);
+
+        // a and b are buffered twice, for a miss and for a match
+        tokenizer.setReader(new StringReader("a b d a b c"));
+        List<TokenAttribute> expected = Arrays.asList(new TokenAttribute("a", "t0", 0, 0, 1, 1),
+                new TokenAttribute("b", "t1/keyword", 1, 2, 3, 1), new TokenAttribute("d", "t2", 2, 4, 5, 1),
+                new TokenAttribute("x", "SYNONYM", 3, 6, 11, 3), new TokenAttribute("a", "t3/keyword", 3, 6, 7, 1),
+                new TokenAttribute("b", "t4", 4, 8, 9, 1), new TokenAttribute("c", "t5/keyword", 5, 10, 11, 1));
+        Collections.sort(expected);
+        List<TokenAttribute> result = parseMarked(stream);
+        Collections.sort(result);
+        assertSynonymsEquals(expected, result);
+
+        // Reused slots are overwritten by the tokens of the next stream
+        tokenizer.setReader(new StringReader("b a b"));
+        expected = Arrays.asList(new TokenAttribute("b", "t0", 0, 0, 1, 1),
+                new TokenAttribute("a", "t1/keyword", 1, 2, 3, 1), new TokenAttribute("b", "t2", 2, 4, 5, 1));
+        result = parseMarked(stream);
+        assertSynonymsEquals(expected, result);
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        Path configPath = Paths.get(tempFolder.getRoot().getAbsolutePath());
+        Files.write(configPath.resolve("replace.txt"), Arrays.asList("a,b", "b,c", "x y,w", "m,k l"),
+                StandardCharsets.UTF_8);
+        Chikkar chikkar = new Chikkar(analyzer);
+        chikkar.loadDictionary(configPath.resolve("replace.txt"));
+        ChikkarSynonymMap synonyms = new ChikkarSynonymMap.Builder(true).setExpand(false).build(chikkar);
+        TokenFilterFactory factory = new TokenFilterFactory() {
+            @Override
+            public String name() {
+                return "chikkar_test";
+            }
+
+            @Override
+            public TokenStream create(TokenStream tokenStream) {
+                return new ChikkarSynonymGraphTokenFilter(tokenStream, synonyms, false);
+            }
+        };
+
+        // Words of overlapping lines are replaced by the same word
+        assertSynonymsEquals(
+                Arrays.asList(new TokenAttribute("a", "SYNONYM", 0, 0, 1, 1),
+                        new TokenAttribute("a", "SYNONYM", 1, 2, 3, 1), new TokenAttribute("a", "SYNONYM", 2, 4, 5, 1)),
+                parseSynonyms(factory, "c b a"));
+
+        // The replacement of a span of two tokens takes one position
+        assertSynonymsEquals(Arrays.asList(new TokenAttribute("w", "SYNONYM", 0, 0, 3, 1),
+                new TokenAttribute("q", "word", 1, 4, 5, 1)), parseSynonyms(factory, "x y q"));
+
+        // A multi-token replacement takes a position for each token, with the
+        // offsets of the replaced span
+        assertSynonymsEquals(Arrays.asList(new TokenAttribute("k", "SYNONYM", 0, 0, 1, 1),
+                new TokenAttribute("l", "SYNONYM", 1, 0, 1, 1), new TokenAttribute("q", "word", 2, 2, 3, 1)),
+                parseSynonyms(factory, "m q"));
+
+        // Replacing adds no path, so the limits of paths and weights keep every
+        // replacement
+        for (TokenFilterFactory limited : Arrays.asList(limitedFactory(synonyms, 1, Float.NEGATIVE_INFINITY),
+                limitedFactory(synonyms, ChikkarSynonymMap.UNLIMITED, 2.0f))) {
+            assertSynonymsEquals(Arrays.asList(new TokenAttribute("a", "SYNONYM", 0, 0, 1, 1),
+                    new TokenAttribute("a", "SYNONYM", 1, 2, 3, 1), new TokenAttribute("q", "word", 2, 4, 5, 1)),
+                    parseSynonyms(limited, "c b q"));
+        }
+    }
+
+    private static TokenFilterFactory limitedFactory(ChikkarSynonymMap synonyms, int maxPathsPerQuery,
+            float minWeight) {
+        return new TokenFilterFactory() {
+            @Override
+            public String name() {
+                return "chikkar_test";
+            }
+
+            @Override
+            public TokenStream create(TokenStream tokenStream) {
+                return new ChikkarSynonymGraphTokenFilter(tokenStream, synonyms, false, maxPathsPerQuery,
+                        ChikkarSynonymMap.UNLIMITED, minWeight);
+            }
+        };
+    }
+
+    List<TokenAttribute> parseMarked(TokenStream stream) throws IOException {
+        CharTermAttribute term = stream.getAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute posIncr = stream.getAttribute(PositionIncrementAttribute.class);
+        OffsetAttribute offset = stream.getAttribute(OffsetAttribute.class);
+        TypeAttribute type = stream.getAttribute(TypeAttribute.class);
+        KeywordAttribute keyword = stream.getAttribute(KeywordAttribute.class);
+        PositionLengthAttribute posLen = stream.getAttribute(PositionLengthAttribute.class);
+
+        int lastPosition = -1;
+        List<TokenAttribute> ta = new ArrayList<>();
+
+        stream.reset();
+        while (stream.incrementToken()) {
+            lastPosition += posIncr.getPositionIncrement();
+            ta.add(new TokenAttribute(term.toString(), type.type() + (keyword.isKeyword() ? "/keyword" : ""),
+                    lastPosition, offset.startOffset(), offset.endOffset(), posLen.getPositionLength()));
+        }
+        stream.end();
+        stream.close();
+
+        return ta;
+    }
+
     void assertSynonymsEquals(List<TokenAttribute> expected, List<TokenAttribute> actual) {
         assertEquals(expected.size(), actual.size());
         for (int i = 0; i < actual.size(); i++) {
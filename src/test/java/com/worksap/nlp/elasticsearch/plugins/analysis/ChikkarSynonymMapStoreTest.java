@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import com.worksap.nlp.elasticsearch.plugins.chikkar.Chikkar;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChikkarSynonymMapStoreTest {
+
+    private static final String[] LINES = { "a,b^0.5,c d", "Apple,りんご", "𠮷野家 => 吉野家^0.2" };
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ChikkarSynonymMapStore store = new ChikkarSynonymMapStore(tempFolder.getRoot().toPath().resolve("store"));
+        for (boolean ignoreCase : new boolean[] { false, true }) {
+            ChikkarSynonymMap built = buildSynonyms(new ChikkarSynonymMap.Builder(true, ignoreCase), LINES);
+            String fingerprint = "map" + ignoreCase;
+            store.save(fingerprint, built);
+            ChikkarSynonymMap loaded = store.load(fingerprint, 0);
+            assertNotNull(loaded);
+            assertEquals(ignoreCase, loaded.ignoreCase);
+            assertEquals(built.maxHorizontalContext, loaded.maxHorizontalContext);
+            assertEquals(outputs(built), outputs(loaded));
+
+            // The loaded words are numbered from 0, whatever their ids in the
+            // dictionaries; 𠮷野家 is only a key
+            BitSet ids = outputIds(loaded);
+            assertEquals(6, ids.cardinality());
+            assertEquals(6, ids.length());
+
+            String query = "a c d APPLE 𠮷野家";
+            assertEquals(parse(built, query), parse(loaded, query));
+        }
+    }
+
+    @Test
+    public void testMissingSnapshot() {
+        ChikkarSynonymMapStore store = new ChikkarSynonymMapStore(tempFolder.getRoot().toPath());
+        assertNull(store.load("missing", 0));
+    }
+
+    @Test
+    public void testCorruptedSnapshot() throws Exception {
+        Path root = tempFolder.getRoot().toPath();
+        ChikkarSynonymMapStore store = new ChikkarSynonymMapStore(root);
+        ChikkarSynonymMap built = buildSynonyms(new ChikkarSynonymMap.Builder(true), LINES);
+
+        // A flipped byte fails the checksum of the meta file
+        store.save("meta", built);
+        Path meta = root.resolve("meta").resolve("meta");
+        byte[] bytes = Files.readAllBytes(meta);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(meta, bytes);
+        assertNull(store.load("meta", 0));
+        assertFalse(Files.exists(root.resolve("meta")));
+
+        // A truncated FST does not have the length in the meta file
+        store.save("fst", built);
+        Path fst = root.resolve("fst").resolve("fst");
+        bytes = Files.readAllBytes(fst);
+        Files.write(fst, Arrays.copyOf(bytes, bytes.length - 1));
+        assertNull(store.load("fst", 0));
+        assertFalse(Files.exists(root.resolve("fst")));
+
+        // The snapshot is saved again after the map is built again
+        store.save("fst", built);
+        assertEquals(outputs(built), outputs(store.load("fst", 0)));
+    }
+
+    @Test
+    public void testPrune() throws Exception {
+        Path root = tempFolder.getRoot().toPath();
+        ChikkarSynonymMapStore store = new ChikkarSynonymMapStore(root, 2);
+        ChikkarSynonymMap built = buildSynonyms(new ChikkarSynonymMap.Builder(true), LINES);
+        store.save("first", built);
+        store.save("second", built);
+        long now = System.currentTimeMillis();
+        Files.setLastModifiedTime(root.resolve("first"), FileTime.fromMillis(now - 60_000));
+        Files.setLastModifiedTime(root.resolve("second"), FileTime.fromMillis(now - 120_000));
+
+        // Loading the second makes the first the least recently used
+        assertNotNull(store.load("second", 0));
+        store.save("third", built);
+        assertFalse(Files.exists(root.resolve("first")));
+        assertTrue(Files.exists(root.resolve("second")));
+        assertTrue(Files.exists(root.resolve("third")));
+    }
+
+    @Test
+    public void testFingerprint() throws Exception {
+        Path file = tempFolder.getRoot().toPath().resolve("system.dic");
+        List<Path> files = Arrays.asList(file);
+        String missing = ChikkarSynonymMapStore.fingerprint(Settings.EMPTY, "", files);
+        Files.write(file, new byte[0]);
+        String empty = ChikkarSynonymMapStore.fingerprint(Settings.EMPTY, "", files);
+        Files.write(file, new byte[] { 1 });
+        String changed = ChikkarSynonymMapStore.fingerprint(Settings.EMPTY, "", files);
+        assertNotEquals(missing, empty);
+        assertNotEquals(empty, changed);
+        assertEquals(changed, ChikkarSynonymMapStore.fingerprint(Settings.EMPTY, "", files));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxSnapshotsMustBePositive() {
+        new ChikkarSynonymMapStore(tempFolder.getRoot().toPath(), 0);
+    }
+
+    private ChikkarSynonymMap buildSynonyms(ChikkarSynonymMap.Builder builder, String... lines) throws IOException {
+        Path dict = Files.createTempFile(tempFolder.getRoot().toPath(), "synonyms", ".txt");
+        Files.write(dict, Arrays.asList(lines), StandardCharsets.UTF_8);
+        Chikkar chikkar = new Chikkar(Utils.createWhitespaceAnalyzer());
+        chikkar.enableWeights();
+        chikkar.loadDictionary(dict);
+        return builder.build(chikkar);
+    }
+
+    /**
+     * @return each key with the words and weights of its outputs
+     */
+    private static List<String> outputs(ChikkarSynonymMap map) throws IOException {
+        List<String> outputs = new ArrayList<>();
+        ByteArrayDataInput reader = new ByteArrayDataInput();
+        IntsRefFSTEnum<BytesRef> fstEnum = new IntsRefFSTEnum<>(map.fst);
+        IntsRefFSTEnum.InputOutput<BytesRef> entry;
+        while ((entry = fstEnum.next()) != null) {
+            StringBuilder output = new StringBuilder(new String(entry.input.ints, entry.input.offset,
+                    entry.input.length));
+            reader.reset(entry.output.bytes, entry.output.offset, entry.output.length);
+            int code = reader.readVInt();
+            output.append(" flags=").append(code & ((1 << ChikkarSynonymMap.OUTPUT_COUNT_SHIFT) - 1));
+            boolean weighted = (code & ChikkarSynonymMap.OUTPUT_WEIGHTED) != 0;
+            for (int i = 0; i < code >>> ChikkarSynonymMap.OUTPUT_COUNT_SHIFT; i++) {
+                output.append(' ').append(map.getWord(reader.readVInt()));
+                if (weighted) {
+                    output.append('^').append(Float.intBitsToFloat(reader.readInt()));
+                }
+            }
+            outputs.add(output.toString());
+        }
+        return outputs;
+    }
+
+    private static BitSet outputIds(ChikkarSynonymMap map) throws IOException {
+        BitSet ids = new BitSet();
+        ByteArrayDataInput reader = new ByteArrayDataInput();
+        IntsRefFSTEnum<BytesRef> fstEnum = new IntsRefFSTEnum<>(map.fst);
+        IntsRefFSTEnum.InputOutput<BytesRef> entry;
+        while ((entry = fstEnum.next()) != null) {
+            reader.reset(entry.output.bytes, entry.output.offset, entry.output.length);
+            int code = reader.readVInt();
+            boolean weighted = (code & ChikkarSynonymMap.OUTPUT_WEIGHTED) != 0;
+            for (int i = 0; i < code >>> ChikkarSynonymMap.OUTPUT_COUNT_SHIFT; i++) {
+                ids.set(reader.readVInt());
+                if (weighted) {
+                    reader.readInt();
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static List<String> parse(ChikkarSynonymMap synonyms, String text) throws IOException {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(text));
+        TokenStream stream = new ChikkarSynonymTokenFilter(tokenizer, synonyms, false);
+        CharTermAttribute term = stream.getAttribute(CharTermAttribute.class);
+
+        List<String> terms = new ArrayList<>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            terms.add(term.toString());
+        }
+        stream.end();
+        stream.close();
+        return terms;
+    }
+}
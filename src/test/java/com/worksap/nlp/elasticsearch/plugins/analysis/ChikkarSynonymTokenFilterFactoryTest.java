@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.worksap.nlp.elasticsearch.plugins.chikkar.EntryAnalyzer;
+import com.worksap.nlp.elasticsearch.plugins.chikkar.SudachiEntryAnalyzer;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisMode;
+import org.elasticsearch.index.analysis.CharFilterFactory;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.analysis.TokenizerFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChikkarSynonymTokenFilterFactoryTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testDetectsSudachiChain() {
+        // by the types of configured components, and by the names of built-in ones
+        assertTrue(factory(Settings.builder(), sudachiTokenizer()).buildSudachiEntryAnalyzer(tokenizer("sudachi"),
+                Collections.emptyList(), filters("normalize")) instanceof SudachiEntryAnalyzer);
+        assertTrue(factory(Settings.builder(), Settings.builder()).buildSudachiEntryAnalyzer(
+                tokenizer("sudachi_tokenizer"), Collections.emptyList(),
+                filters("sudachi_normalizedform")) instanceof SudachiEntryAnalyzer);
+        Settings.Builder modes = sudachiTokenizer().put("index.analysis.tokenizer.sudachi.mode", "normal")
+                .put("index.analysis.tokenizer.sudachi.split_mode", "a");
+        assertTrue(factory(Settings.builder(), modes).buildSudachiEntryAnalyzer(tokenizer("sudachi"),
+                Collections.emptyList(), filters("normalize")) instanceof SudachiEntryAnalyzer);
+    }
+
+    @Test
+    public void testOtherChains() {
+        AbstractChikkarSynonymFilterFactory factory = factory(Settings.builder(), sudachiTokenizer());
+        CharFilterFactory charFilter = new CharFilterFactory() {
+            @Override
+            public String name() {
+                return "icu_normalizer";
+            }
+
+            @Override
+            public Reader create(Reader reader) {
+                return reader;
+            }
+        };
+        assertNull(factory.buildSudachiEntryAnalyzer(tokenizer("sudachi"), Collections.singletonList(charFilter),
+                filters("normalize")));
+        assertNull(factory.buildSudachiEntryAnalyzer(tokenizer("sudachi"), Collections.emptyList(),
+                filters("normalize", "lowercase")));
+        assertNull(factory.buildSudachiEntryAnalyzer(tokenizer("sudachi"), Collections.emptyList(),
+                filters("lowercase")));
+        assertNull(factory.buildSudachiEntryAnalyzer(tokenizer("sudachi"), Collections.emptyList(),
+                Collections.emptyList()));
+        assertNull(factory.buildSudachiEntryAnalyzer(tokenizer("whitespace"), Collections.emptyList(),
+                filters("normalize")));
+    }
+
+    @Test
+    public void testSearchMode() {
+        // search and extended modes add tokens which Sudachi does not return
+        for (String mode : Arrays.asList("search", "extended")) {
+            Settings.Builder settings = sudachiTokenizer().put("index.analysis.tokenizer.sudachi.mode", mode);
+            assertNull(factory(Settings.builder(), settings).buildSudachiEntryAnalyzer(tokenizer("sudachi"),
+                    Collections.emptyList(), filters("normalize")));
+        }
+    }
+
+    @Test
+    public void testBadSplitMode() {
+        // the tokenizer reports it
+        Settings.Builder settings = sudachiTokenizer().put("index.analysis.tokenizer.sudachi.split_mode", "D");
+        assertNull(factory(Settings.builder(), settings).buildSudachiEntryAnalyzer(tokenizer("sudachi"),
+                Collections.emptyList(), filters("normalize")));
+    }
+
+    @Test
+    public void testSudachiNative() {
+        assertTrue(factory(Settings.builder(), sudachiTokenizer()).buildEntryAnalyzer(tokenizer("sudachi"),
+                Collections.emptyList(), filters("normalize")) instanceof SudachiEntryAnalyzer);
+        assertFalse(factory(Settings.builder().put("sudachi_native", "false"), sudachiTokenizer())
+                .buildEntryAnalyzer(tokenizer("sudachi"), Collections.emptyList(),
+                        filters("normalize")) instanceof SudachiEntryAnalyzer);
+    }
+
+    @Test
+    public void testChainFiles() throws Exception {
+        Path config = tempFolder.getRoot().toPath();
+        Path resources = Files.createDirectories(config.resolve("sudachi"));
+        Files.write(resources.resolve("system_core.dic"), new byte[] { 1 });
+        Files.write(resources.resolve("char.def"), new byte[] { 2 });
+        Path user = Files.write(config.resolve("user.dic"), new byte[] { 3 });
+        Files.write(config.resolve("sudachi.json"),
+                ("{\"userDict\": [\"" + user + "\"]}").getBytes(StandardCharsets.UTF_8));
+        Settings.Builder settings = sudachiTokenizer().put("index.analysis.tokenizer.sudachi.settings_path",
+                "sudachi.json").put("index.analysis.filter.stop.type", "stop")
+                .put("index.analysis.filter.stop.stopwords_path", "stopwords.txt");
+
+        // the files of the resources, the settings and the dictionaries they
+        // name, and files of other components, even missing ones
+        assertEquals(Arrays.asList(config.resolve("sudachi.json"), resources.resolve("char.def"),
+                resources.resolve("system_core.dic"), user, config.resolve("stopwords.txt")),
+                factory(Settings.builder(), settings).chainFiles(tokenizer("sudachi"), Collections.emptyList(),
+                        filters("normalize", "stop")));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedSudachiAnalyzer() {
+        // a closed analyzer does not open the dictionary again
+        EntryAnalyzer analyzer = factory(Settings.builder(), sudachiTokenizer())
+                .buildSudachiEntryAnalyzer(tokenizer("sudachi"), Collections.emptyList(), filters("normalize"));
+        analyzer.close();
+        analyzer.analyze("東京");
+    }
+
+    @Test
+    public void testUpdateable() {
+        // only search analyzers can be reloaded
+        AbstractChikkarSynonymFilterFactory factory = factory(Settings.builder(), Settings.builder());
+        assertEquals(AnalysisMode.ALL, factory.getAnalysisMode());
+        factory = factory(Settings.builder().put("updateable", "true"), Settings.builder());
+        assertEquals(AnalysisMode.SEARCH_TIME, factory.getAnalysisMode());
+    }
+
+    @Test
+    public void testBuildBufferSize() {
+        factory(Settings.builder().put("build_buffer_size", "2047mb"), Settings.builder());
+        factory(Settings.builder().put("build_buffer_size", "512kb"), Settings.builder());
+        // rejected when the filter is created, before any build, also when the
+        // megabytes do not fit an int
+        for (String size : Arrays.asList("2048mb", "4096tb")) {
+            try {
+                factory(Settings.builder().put("build_buffer_size", size), Settings.builder());
+                fail("accepted " + size);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("build_buffer_size must be between"));
+            }
+        }
+    }
+
+    private static Settings.Builder sudachiTokenizer() {
+        return Settings.builder().put("index.analysis.tokenizer.sudachi.type", "sudachi_tokenizer")
+                .put("index.analysis.filter.normalize.type", "sudachi_normalizedform");
+    }
+
+    private AbstractChikkarSynonymFilterFactory factory(Settings.Builder filterSettings,
+            Settings.Builder analysisSettings) {
+        Index index = mock(Index.class);
+        when(index.getName()).thenReturn("test");
+        IndexSettings indexSettings = mock(IndexSettings.class);
+        when(indexSettings.getIndex()).thenReturn(index);
+        when(indexSettings.getSettings()).thenReturn(analysisSettings.build());
+        Environment env = mock(Environment.class);
+        when(env.configFile()).thenReturn(tempFolder.getRoot().toPath());
+
+        return new ChikkarSynonymTokenFilterFactory(indexSettings, env, "synonym",
+                filterSettings.put("system_dict", "synonyms.txt").build());
+    }
+
+    private static TokenizerFactory tokenizer(String name) {
+        return new TokenizerFactory() {
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public Tokenizer create() {
+                return new WhitespaceTokenizer();
+            }
+        };
+    }
+
+    private static List<TokenFilterFactory> filters(String... names) {
+        TokenFilterFactory[] filters = new TokenFilterFactory[names.length];
+        for (int i = 0; i < names.length; i++) {
+            final String name = names[i];
+            filters[i] = new TokenFilterFactory() {
+                @Override
+                public String name() {
+                    return name;
+                }
+
+                @Override
+                public TokenStream create(TokenStream tokenStream) {
+                    return tokenStream;
+                }
+            };
+        }
+        return Arrays.asList(filters);
+    }
+}
@@ -16,16 +16,39 @@
 
 package com.worksap.nlp.elasticsearch.plugins.analysis;
 
+import com.worksap.nlp.elasticsearch.plugins.chikkar.Chikkar;
+
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
 import org.elasticsearch.index.analysis.TokenFilterFactory;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -181,4 +204,378 @@ public class ChikkarSynonymTokenFilterTest {
         Collections.sort(result);
         Utils.assertSynonymsEquals(expected, result);
     }
+
+    @Test
+    public void testRollBufferGrowsAndShrinksAcrossReset() throws Exception {
+        // A key of 10 tokens needs more lookahead than the initial roll buffer of 4
+        ChikkarSynonymMap synonyms = buildSynonyms("a b c d e f g h i j,x");
+        String match = "a b c d e f g h i j";
+        String partial = "a b c d e f g h i z";
+
+        List<Utils.TokenAttribute> expected = new ArrayList<>();
+        String[] words = match.split(" ");
+        for (int i = 0; i < words.length; i++) {
+            expected.add(new Utils.TokenAttribute(words[i], "word", i, 2 * i, 2 * i + 1, 1));
+        }
+        expected.add(new Utils.TokenAttribute("x", "SYNONYM", 0, 0, match.length(), words.length));
+        Collections.sort(expected);
+
+        // The same filter is reused as an analyzer does; the buffer grows for the
+        // long streams and is given back after the short ones
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream filter = new ChikkarSynonymTokenFilter(tokenizer, synonyms, false);
+        for (String text : Arrays.asList(match, partial, "x", "x", "a", match, partial, "x")) {
+            List<Utils.TokenAttribute> result = parseSynonyms(tokenizer, filter, text);
+            Tokenizer fresh = new WhitespaceTokenizer();
+            TokenStream freshFilter = new ChikkarSynonymTokenFilter(fresh, synonyms, false);
+            Utils.assertSynonymsEquals(parseSynonyms(fresh, freshFilter, text), result);
+            if (text.equals(match)) {
+                Collections.sort(result);
+                Utils.assertSynonymsEquals(expected, result);
+            }
+        }
+    }
+
+    @Test
+    public void testOutputLongerThanKey() throws Exception {
+        // The outputs of a key of one token take three positions of the buffer
+        ChikkarSynonymMap synonyms = buildSynonyms("a => x y z");
+        assertEquals(3, synonyms.maxHorizontalContext);
+        List<Utils.TokenAttribute> expected = Arrays.asList(new Utils.TokenAttribute("a", "word", 0, 0, 1, 1),
+                new Utils.TokenAttribute("x", "SYNONYM", 0, 0, 1, 1),
+                new Utils.TokenAttribute("y", "SYNONYM", 1, 0, 1, 1),
+                new Utils.TokenAttribute("z", "SYNONYM", 2, 0, 1, 1));
+
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream filter = new ChikkarSynonymTokenFilter(tokenizer, synonyms, false);
+        Utils.assertSynonymsEquals(expected, parseSynonyms(tokenizer, filter, "a"));
+    }
+
+    @Test
+    public void testOfflineSortMatchesHeapSort() throws Exception {
+        // U+FF21 sorts after the surrogates of U+20BB7 in UTF-16 order, but before
+        // them in code point order; U+10400 folds to U+10428
+        String[] lines = { "\uD842\uDFB7野家,吉野家", "\uFF21\uFF22 c,d^0.5", "\uD842\uDFB7,x y", "Apple,りんご",
+                "apple => 林檎^0.2", "\uD801\uDC00 deseret,\uD801\uDC28" };
+        for (boolean ignoreCase : new boolean[] { false, true }) {
+            ChikkarSynonymMap heap = buildSynonyms(new ChikkarSynonymMap.Builder(true, ignoreCase), lines);
+            ChikkarSynonymMap offline = buildSynonyms(
+                    new ChikkarSynonymMap.Builder(true, ignoreCase).setOfflineSort(tempFolder.getRoot().toPath(), 1),
+                    lines);
+            assertEquals(heap.maxHorizontalContext, offline.maxHorizontalContext);
+
+            IntsRefFSTEnum<BytesRef> expected = new IntsRefFSTEnum<>(heap.fst);
+            IntsRefFSTEnum<BytesRef> actual = new IntsRefFSTEnum<>(offline.fst);
+            int count = 0;
+            IntsRefFSTEnum.InputOutput<BytesRef> entry;
+            while ((entry = expected.next()) != null) {
+                IntsRef input = IntsRef.deepCopyOf(entry.input);
+                BytesRef output = BytesRef.deepCopyOf(entry.output);
+                entry = actual.next();
+                assertEquals(input, entry.input);
+                assertEquals(output, entry.output);
+                count++;
+            }
+            assertNull(actual.next());
+            assertEquals(ignoreCase ? 10 : 11, count);
+        }
+    }
+
+    @Test
+    public void testTokensNoKeyStartsWith() throws Exception {
+        // Keys start with a supplementary character, a Latin letter and a kanji
+        ChikkarSynonymMap synonyms = buildSynonyms("\uD842\uDFB7野家,吉野家", "apple,りんご", "ab c,d");
+        assertTrue(synonyms.mayStartKey(0x20BB7));
+        assertFalse(synonyms.mayStartKey(0xD842));
+        assertTrue(synonyms.mayStartKey('a'));
+        assertFalse(synonyms.mayStartKey('z'));
+        assertTrue(synonyms.mayStartKey('吉'));
+        assertFalse(synonyms.mayStartKey('野'));
+
+        String query = "\uD842\uDFB7野家 apple zapple 野家 ab c";
+        List<Utils.TokenAttribute> expected = Arrays.asList(
+                new Utils.TokenAttribute("\uD842\uDFB7野家", "word", 0, 0, 4, 1),
+                new Utils.TokenAttribute("吉野家", "SYNONYM", 0, 0, 4, 1),
+                new Utils.TokenAttribute("apple", "word", 1, 5, 10, 1),
+                new Utils.TokenAttribute("りんご", "SYNONYM", 1, 5, 10, 1),
+                new Utils.TokenAttribute("zapple", "word", 2, 11, 17, 1),
+                new Utils.TokenAttribute("野家", "word", 3, 18, 20, 1),
+                new Utils.TokenAttribute("ab", "word", 4, 21, 23, 1),
+                new Utils.TokenAttribute("d", "SYNONYM", 4, 21, 25, 2),
+                new Utils.TokenAttribute("c", "word", 5, 24, 25, 1));
+        Collections.sort(expected);
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        List<Utils.TokenAttribute> result = parseSynonyms(tokenizer,
+                new ChikkarSynonymTokenFilter(tokenizer, synonyms, false), query);
+        Collections.sort(result);
+        Utils.assertSynonymsEquals(expected, result);
+    }
+
+    @Test
+    public void testRootArcsMatchFst() throws Exception {
+        // Kana and kanji arcs are cached, the others are looked up in the FST
+        ChikkarSynonymMap synonyms = buildSynonyms("あやふや,アヤフヤ,曖昧", "粗筋,荒筋", "\uD842\uDFB7野家,apple");
+        FST.BytesReader reader = synonyms.fst.getBytesReader();
+        int[] codePoints = { 'あ', 'ア', '曖', '粗', '荒', 0x20BB7, 'a', 'い', '亜', '龠', 'z', 0x20BB8 };
+        for (int codePoint : codePoints) {
+            FST.Arc<BytesRef> expected = synonyms.fst.findTargetArc(codePoint,
+                    synonyms.fst.getFirstArc(new FST.Arc<>()), new FST.Arc<>(), reader);
+            FST.Arc<BytesRef> arc = new FST.Arc<>();
+            FST.Arc<BytesRef> result = synonyms.findRootArc(codePoint, arc, reader);
+            if (expected == null) {
+                assertNull(result);
+                continue;
+            }
+            assertSame(arc, result);
+            assertEquals(expected.label(), arc.label());
+            assertEquals(expected.output(), arc.output());
+            assertEquals(expected.target(), arc.target());
+            assertEquals(expected.isFinal(), arc.isFinal());
+
+            // Walking on from the arc must not change the cached one
+            synonyms.fst.readFirstTargetArc(arc, arc, reader);
+            synonyms.findRootArc(codePoint, arc, reader);
+            assertEquals(expected.label(), arc.label());
+            assertEquals(expected.target(), arc.target());
+        }
+    }
+
+    @Test
+    public void testMixedCaseKeys() throws Exception {
+        // U+10400 is a supplementary capital letter folding to U+10428
+        String[] lines = { "Apple,ÄPFEL", "\uD801\uDC00x,deseret" };
+
+        // Keys are folded with the map, so input of any case matches
+        ChikkarSynonymMap synonyms = buildSynonyms(new ChikkarSynonymMap.Builder(true, true), lines);
+        String query = "APPLE äpfel \uD801\uDC28X";
+        List<Utils.TokenAttribute> expected = Arrays.asList(new Utils.TokenAttribute("APPLE", "word", 0, 0, 5, 1),
+                new Utils.TokenAttribute("ÄPFEL", "SYNONYM", 0, 0, 5, 1),
+                new Utils.TokenAttribute("äpfel", "word", 1, 6, 11, 1),
+                new Utils.TokenAttribute("Apple", "SYNONYM", 1, 6, 11, 1),
+                new Utils.TokenAttribute("\uD801\uDC28X", "word", 2, 12, 15, 1),
+                new Utils.TokenAttribute("deseret", "SYNONYM", 2, 12, 15, 1));
+        Collections.sort(expected);
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        List<Utils.TokenAttribute> result = parseSynonyms(tokenizer,
+                new ChikkarSynonymTokenFilter(tokenizer, synonyms, false), query);
+        Collections.sort(result);
+        Utils.assertSynonymsEquals(expected, result);
+
+        // Only the input is folded otherwise, so keys with capitals never match
+        synonyms = buildSynonyms(lines);
+        query = "Apple DESERET";
+        expected = Arrays.asList(new Utils.TokenAttribute("Apple", "word", 0, 0, 5, 1),
+                new Utils.TokenAttribute("DESERET", "word", 1, 6, 13, 1),
+                new Utils.TokenAttribute("\uD801\uDC00x", "SYNONYM", 1, 6, 13, 1));
+        Collections.sort(expected);
+        tokenizer = new WhitespaceTokenizer();
+        result = parseSynonyms(tokenizer, new ChikkarSynonymTokenFilter(tokenizer, synonyms, true), query);
+        Collections.sort(result);
+        Utils.assertSynonymsEquals(expected, result);
+    }
+
+    @Test
+    public void testTruncationOrder() throws Exception {
+        // Synonyms of a in dictionary priority order are d, c and b: the relations
+        // added last come first
+        String[] lines = { "a,b,c", "a,d" };
+        String query = "a a";
+
+        // max_expansions keeps the first synonyms of each key
+        ChikkarSynonymMap synonyms = buildSynonyms(new ChikkarSynonymMap.Builder(true).setMaxExpansions(2), lines);
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        List<Utils.TokenAttribute> result = parseSynonyms(tokenizer,
+                new ChikkarSynonymTokenFilter(tokenizer, synonyms, false), query);
+        Utils.assertSynonymsEquals(Arrays.asList(new Utils.TokenAttribute("a", "word", 0, 0, 1, 1),
+                new Utils.TokenAttribute("d", "SYNONYM", 0, 0, 1, 1),
+                new Utils.TokenAttribute("c", "SYNONYM", 0, 0, 1, 1),
+                new Utils.TokenAttribute("a", "word", 1, 2, 3, 1),
+                new Utils.TokenAttribute("d", "SYNONYM", 1, 2, 3, 1),
+                new Utils.TokenAttribute("c", "SYNONYM", 1, 2, 3, 1)), result);
+
+        // max_paths_per_query gives the earlier matches all their synonyms, and
+        // drops the last ones of later matches: 4 paths after the first a leave
+        // room for one synonym of the second
+        synonyms = buildSynonyms(lines);
+        result = parseSynonyms(tokenizer, new ChikkarSynonymTokenFilter(tokenizer, synonyms, false, 8), query);
+        Utils.assertSynonymsEquals(Arrays.asList(new Utils.TokenAttribute("a", "word", 0, 0, 1, 1),
+                new Utils.TokenAttribute("d", "SYNONYM", 0, 0, 1, 1),
+                new Utils.TokenAttribute("c", "SYNONYM", 0, 0, 1, 1),
+                new Utils.TokenAttribute("b", "SYNONYM", 0, 0, 1, 1),
+                new Utils.TokenAttribute("a", "word", 1, 2, 3, 1),
+                new Utils.TokenAttribute("d", "SYNONYM", 1, 2, 3, 1)), result);
+
+        // Without room for any synonym, the later match only keeps its token
+        TokenStream limited = new ChikkarSynonymTokenFilter(tokenizer, synonyms, false, 3);
+        result = parseSynonyms(tokenizer, limited, query);
+        Utils.assertSynonymsEquals(Arrays.asList(new Utils.TokenAttribute("a", "word", 0, 0, 1, 1),
+                new Utils.TokenAttribute("d", "SYNONYM", 0, 0, 1, 1),
+                new Utils.TokenAttribute("c", "SYNONYM", 0, 0, 1, 1),
+                new Utils.TokenAttribute("a", "word", 1, 2, 3, 1)), result);
+
+        // The count starts over with each stream
+        result = parseSynonyms(tokenizer, limited, "a");
+        Utils.assertSynonymsEquals(Arrays.asList(new Utils.TokenAttribute("a", "word", 0, 0, 1, 1),
+                new Utils.TokenAttribute("d", "SYNONYM", 0, 0, 1, 1),
+                new Utils.TokenAttribute("c", "SYNONYM", 0, 0, 1, 1)), result);
+    }
+
+    @Test
+    public void testWeightOrder() throws Exception {
+        // Synonyms are emitted by descending weight, and the ones of the same
+        // weight in dictionary priority order: d before b, and e before a which
+        // has the default weight 1
+        ChikkarSynonymMap synonyms = buildSynonyms("a,b^0.5,c^2,d^0.5,e");
+        String query = "a b";
+        assertEquals(Arrays.asList("a", "c", "e", "d", "b", "b", "c", "e", "a", "d"),
+                parseTerms(synonyms, ChikkarSynonymMap.UNLIMITED, Float.NEGATIVE_INFINITY, query));
+
+        // top_k cuts ties in the same order
+        assertEquals(Arrays.asList("a", "c", "e", "d", "b", "c", "e", "a"),
+                parseTerms(synonyms, 3, Float.NEGATIVE_INFINITY, query));
+        assertEquals(Arrays.asList("a", "c", "b", "c"), parseTerms(synonyms, 1, Float.NEGATIVE_INFINITY, query));
+
+        // min_weight keeps synonyms of exactly that weight
+        assertEquals(Arrays.asList("a", "c", "e", "b", "c", "e", "a"),
+                parseTerms(synonyms, ChikkarSynonymMap.UNLIMITED, 1.0f, query));
+        assertEquals(Arrays.asList("a", "c", "e", "b", "c", "e"), parseTerms(synonyms, 2, 0.75f, query));
+        assertEquals(Arrays.asList("a", "b"), parseTerms(synonyms, ChikkarSynonymMap.UNLIMITED, 2.5f, query));
+
+        // Without weights, every synonym has the default weight
+        synonyms = buildSynonyms("a,b,c");
+        assertEquals(Arrays.asList("a", "c", "b"), parseTerms(synonyms, ChikkarSynonymMap.UNLIMITED, 1.0f, "a"));
+        assertEquals(Arrays.asList("a"), parseTerms(synonyms, ChikkarSynonymMap.UNLIMITED, 1.5f, "a"));
+    }
+
+    private static List<String> parseTerms(ChikkarSynonymMap synonyms, String text) throws IOException {
+        return parseTerms(synonyms, ChikkarSynonymMap.UNLIMITED, Float.NEGATIVE_INFINITY, text);
+    }
+
+    private static List<String> parseTerms(ChikkarSynonymMap synonyms, int topK, float minWeight, String text)
+            throws IOException {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream stream = new ChikkarSynonymTokenFilter(tokenizer, synonyms, false, ChikkarSynonymMap.UNLIMITED,
+                topK, minWeight);
+        List<String> terms = new ArrayList<>();
+        for (Utils.TokenAttribute token : parseSynonyms(tokenizer, stream, text)) {
+            terms.add(token.term);
+        }
+        return terms;
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        // a, b and c form one group over two lines; d is directed to e and to the
+        // group of f and g
+        ChikkarSynonymMap synonyms = buildSynonyms(new ChikkarSynonymMap.Builder(true).setExpand(false), "a,b",
+                "b,c", "x y,w", "m,k l", "d => e, f", "f,g");
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream stream = new ChikkarSynonymTokenFilter(tokenizer, synonyms, false);
+
+        // Every word of a group is replaced by the same word, and the original is
+        // dropped
+        Utils.assertSynonymsEquals(Arrays.asList(new Utils.TokenAttribute("a", "SYNONYM", 0, 0, 1, 1),
+                new Utils.TokenAttribute("a", "SYNONYM", 1, 2, 3, 1),
+                new Utils.TokenAttribute("a", "SYNONYM", 2, 4, 5, 1)), parseSynonyms(tokenizer, stream, "c b a"));
+
+        // A replaced span of two tokens becomes one token of one position
+        Utils.assertSynonymsEquals(Arrays.asList(new Utils.TokenAttribute("w", "SYNONYM", 0, 0, 3, 1),
+                new Utils.TokenAttribute("q", "word", 1, 4, 5, 1)), parseSynonyms(tokenizer, stream, "x y q"));
+
+        // A multi-token canonical word runs over the next input position
+        Utils.assertSynonymsEquals(Arrays.asList(new Utils.TokenAttribute("k", "SYNONYM", 0, 0, 1, 1),
+                new Utils.TokenAttribute("q", "word", 1, 2, 3, 1),
+                new Utils.TokenAttribute("l", "SYNONYM", 1, 2, 3, 1)), parseSynonyms(tokenizer, stream, "m q"));
+
+        // The key of a directed line takes the canonical words of its targets
+        Utils.assertSynonymsEquals(Arrays.asList(new Utils.TokenAttribute("e", "SYNONYM", 0, 0, 1, 1),
+                new Utils.TokenAttribute("f", "SYNONYM", 1, 2, 3, 1),
+                new Utils.TokenAttribute("e", "word", 2, 4, 5, 1)), parseSynonyms(tokenizer, stream, "d g e"));
+
+        // Replacing adds no path, so the limits of paths and weights keep every
+        // replacement
+        for (TokenStream limited : Arrays.asList(new ChikkarSynonymTokenFilter(tokenizer, synonyms, false, 1),
+                new ChikkarSynonymTokenFilter(tokenizer, synonyms, false, ChikkarSynonymMap.UNLIMITED,
+                        ChikkarSynonymMap.UNLIMITED, 2.0f))) {
+            Utils.assertSynonymsEquals(Arrays.asList(new Utils.TokenAttribute("a", "SYNONYM", 0, 0, 1, 1),
+                    new Utils.TokenAttribute("a", "SYNONYM", 1, 2, 3, 1),
+                    new Utils.TokenAttribute("q", "word", 2, 4, 5, 1)), parseSynonyms(tokenizer, limited, "c b q"));
+        }
+    }
+
+    @Test
+    public void testTransitive() throws Exception {
+        // A,B in the system dictionary and B,C in a user dictionary
+        Path system = Files.createTempFile(tempFolder.getRoot().toPath(), "system", ".txt");
+        Files.write(system, Arrays.asList("A,B"), StandardCharsets.UTF_8);
+        Path user = Files.createTempFile(tempFolder.getRoot().toPath(), "user", ".txt");
+        Files.write(user, Arrays.asList("B,C"), StandardCharsets.UTF_8);
+        Chikkar chikkar = new Chikkar(analyzer);
+        chikkar.loadDictionary(system);
+        chikkar.loadDictionary(user);
+        ChikkarSynonymMap synonyms = new ChikkarSynonymMap.Builder(true).setTransitiveDepth(ChikkarSynonymMap.UNLIMITED)
+                .build(chikkar);
+        // the user dictionary replaces the synonyms of B, so only A reaches all
+        assertEquals(Arrays.asList("A", "B", "C", "B", "C", "C", "B"), parseTerms(synonyms, "A B C"));
+
+        // The depth bounds the hops from the key, and chains back to the key
+        // stop there
+        String[] chain = { "a,b", "b,c", "c,d" };
+        synonyms = buildSynonyms(new ChikkarSynonymMap.Builder(true).setTransitiveDepth(2), chain);
+        assertEquals(Arrays.asList("a", "b", "c"), parseTerms(synonyms, "a"));
+        synonyms = buildSynonyms(new ChikkarSynonymMap.Builder(true).setTransitiveDepth(ChikkarSynonymMap.UNLIMITED),
+                chain);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), parseTerms(synonyms, "a"));
+        assertEquals(Arrays.asList("d", "c", "b", "a"), parseTerms(synonyms, "d"));
+
+        // A cycle of directed lines leads every key to the others only
+        synonyms = buildSynonyms(new ChikkarSynonymMap.Builder(true).setTransitiveDepth(ChikkarSynonymMap.UNLIMITED),
+                "p => q", "q => r", "r => p");
+        assertEquals(Arrays.asList("p", "q", "r"), parseTerms(synonyms, "p"));
+        assertEquals(Arrays.asList("r", "p", "q"), parseTerms(synonyms, "r"));
+
+        // The weight of a word reached over several hops is the product of the
+        // weights along the way, 0.5 * 0.4 for z
+        synonyms = buildSynonyms(new ChikkarSynonymMap.Builder(true).setTransitiveDepth(ChikkarSynonymMap.UNLIMITED),
+                "x => y^0.5", "y => z^0.4");
+        assertEquals(Arrays.asList("x", "y", "z"), parseTerms(synonyms, ChikkarSynonymMap.UNLIMITED, 0.2f, "x"));
+        assertEquals(Arrays.asList("x", "y"), parseTerms(synonyms, ChikkarSynonymMap.UNLIMITED, 0.21f, "x"));
+    }
+
+    private ChikkarSynonymMap buildSynonyms(String... lines) throws IOException {
+        return buildSynonyms(new ChikkarSynonymMap.Builder(true), lines);
+    }
+
+    private ChikkarSynonymMap buildSynonyms(ChikkarSynonymMap.Builder builder, String... lines) throws IOException {
+        Path dict = Files.createTempFile(tempFolder.getRoot().toPath(), "synonyms", ".txt");
+        Files.write(dict, Arrays.asList(lines), StandardCharsets.UTF_8);
+        Chikkar chikkar = new Chikkar(analyzer);
+        chikkar.enableWeights();
+        chikkar.loadDictionary(dict);
+        return builder.build(chikkar);
+    }
+
+    private static List<Utils.TokenAttribute> parseSynonyms(Tokenizer tokenizer, TokenStream stream, String text)
+            throws IOException {
+        tokenizer.setReader(new StringReader(text));
+        CharTermAttribute term = stream.getAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute posIncr = stream.getAttribute(PositionIncrementAttribute.class);
+        OffsetAttribute offset = stream.getAttribute(OffsetAttribute.class);
+        TypeAttribute type = stream.getAttribute(TypeAttribute.class);
+        PositionLengthAttribute posLen = stream.getAttribute(PositionLengthAttribute.class);
+
+        int lastPosition = -1;
+        List<Utils.TokenAttribute> ta = new ArrayList<>();
+
+        stream.reset();
+        while (stream.incrementToken()) {
+            lastPosition += posIncr.getPositionIncrement();
+            ta.add(new Utils.TokenAttribute(term.toString(), type.type(), lastPosition, offset.startOffset(),
+                    offset.endOffset(), posLen.getPositionLength()));
+        }
+        stream.end();
+        stream.close();
+
+        return ta;
+    }
 }
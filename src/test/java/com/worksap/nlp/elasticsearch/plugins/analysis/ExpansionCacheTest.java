@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2019 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.plugins.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.worksap.nlp.elasticsearch.plugins.chikkar.Chikkar;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.fst.FST;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExpansionCacheTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testCapacity() {
+        assertEquals(1, new ExpansionCache(1).capacity());
+        assertEquals(8, new ExpansionCache(8).capacity());
+        assertEquals(16, new ExpansionCache(9).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePositive() {
+        new ExpansionCache(0);
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        ChikkarSynonymMap synonyms = buildSynonyms(new ChikkarSynonymMap.Builder(true).setExpansionCacheSize(16),
+                "a,b", "cf,e");
+        ChikkarSynonymMap uncached = buildSynonyms(new ChikkarSynonymMap.Builder(true), "a,b", "cf,e");
+
+        // z starts no key, so it is passed before the cache; cx leaves the FST at
+        // x and is cached as no match. Each term takes its own slot of 16
+        String query = "a z b a cx cx cf z";
+        assertEquals(parse(uncached, false, query), parse(synonyms, false, query));
+        assertEquals(2, synonyms.expansionCache.getHitCount());
+        assertEquals(4, synonyms.expansionCache.getMissCount());
+
+        // The cache is shared by all filters of the map
+        assertEquals(parse(uncached, false, query), parse(synonyms, false, query));
+        assertEquals(8, synonyms.expansionCache.getHitCount());
+        assertEquals(4, synonyms.expansionCache.getMissCount());
+    }
+
+    @Test
+    public void testEviction() {
+        ExpansionCache cache = new ExpansionCache(1);
+        char[] a = "a".toCharArray();
+        char[] b = "b".toCharArray();
+        FST.Arc<BytesRef> arc = new FST.Arc<>();
+
+        cache.put(a, a.length, arc, new BytesRef());
+        ExpansionCache.Entry entry = cache.get(a, a.length);
+        assertNotNull(entry);
+        assertTrue(entry.isMatch());
+
+        // The only slot is taken over by b
+        cache.putNoMatch(b, b.length);
+        assertNull(cache.get(a, a.length));
+        entry = cache.get(b, b.length);
+        assertNotNull(entry);
+        assertFalse(entry.isMatch());
+
+        // Only the given length of the buffer is the term
+        assertNull(cache.get("bc".toCharArray(), 2));
+        assertNotNull(cache.get("bc".toCharArray(), 1));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testFoldedInput() throws Exception {
+        // Keys are not folded, so a filter which folds input must not share the
+        // walks of the others: dESERET leaves the FST unless it is folded
+        ChikkarSynonymMap synonyms = buildSynonyms(new ChikkarSynonymMap.Builder(true).setExpansionCacheSize(16),
+                "deseret,x");
+        assertEquals(Arrays.asList("dESERET"), parse(synonyms, false, "dESERET"));
+        assertEquals(Arrays.asList("dESERET", "x"), parse(synonyms, true, "dESERET"));
+        assertEquals(Arrays.asList("dESERET"), parse(synonyms, false, "dESERET"));
+        assertEquals(1, synonyms.expansionCache.getHitCount());
+        assertEquals(1, synonyms.expansionCache.getMissCount());
+
+        // Keys are folded with the map, and every filter folds input the same way
+        synonyms = buildSynonyms(new ChikkarSynonymMap.Builder(true, true).setExpansionCacheSize(16),
+                "Deseret,x");
+        assertEquals(Arrays.asList("DESERET", "x"), parse(synonyms, false, "DESERET"));
+        assertEquals(Arrays.asList("DESERET", "x"), parse(synonyms, true, "DESERET"));
+        assertEquals(Arrays.asList("deseret", "x"), parse(synonyms, true, "deseret"));
+        assertEquals(1, synonyms.expansionCache.getHitCount());
+        assertEquals(2, synonyms.expansionCache.getMissCount());
+    }
+
+    private ChikkarSynonymMap buildSynonyms(ChikkarSynonymMap.Builder builder, String... lines) throws IOException {
+        Path dict = Files.createTempFile(tempFolder.getRoot().toPath(), "synonyms", ".txt");
+        Files.write(dict, Arrays.asList(lines), StandardCharsets.UTF_8);
+        Chikkar chikkar = new Chikkar(Utils.createWhitespaceAnalyzer());
+        chikkar.loadDictionary(dict);
+        return builder.build(chikkar);
+    }
+
+    private static List<String> parse(ChikkarSynonymMap synonyms, boolean ignoreCase, String text)
+            throws IOException {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(text));
+        TokenStream stream = new ChikkarSynonymTokenFilter(tokenizer, synonyms, ignoreCase);
+        CharTermAttribute term = stream.getAttribute(CharTermAttribute.class);
+
+        List<String> terms = new ArrayList<>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            terms.add(term.toString());
+        }
+        stream.end();
+        stream.close();
+        return terms;
+    }
+}
@@ -17,13 +17,18 @@
 package com.worksap.nlp.elasticsearch.plugins.chikkar;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.Tokenizer;
@@ -38,9 +43,12 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import com.worksap.nlp.elasticsearch.plugins.analysis.ChikkarSynonymMap;
 import com.worksap.nlp.sudachi.Morpheme;
 
 public class ChikkarTest {
@@ -50,6 +58,7 @@ public class ChikkarTest {
     static Chikkar chikkar2;
     static Chikkar chikkar3;
     static Chikkar chikkar4;
+    static Chikkar chikkar5;
 
     @ClassRule
     public static TemporaryFolder tempFolder = new TemporaryFolder();
@@ -67,6 +76,7 @@ public class ChikkarTest {
         String nameOverWrite = "testOverwrite.txt";
         String nameDirected = "directed.txt";
         String nameMerge = "synonymMergeA.txt";
+        String nameMultiToken = "synonymMultiToken.txt";
 
         tempFolder.create();
         final String tempPath = tempFolder.getRoot().getAbsolutePath();
@@ -74,11 +84,13 @@ public class ChikkarTest {
         Path pathTestOverWrite = Paths.get(tempPath, nameOverWrite);
         Path pathDirected = Paths.get(tempPath, nameDirected);
         Path pathMerge = Paths.get(tempPath, nameMerge);
+        Path pathMultiToken = Paths.get(tempPath, nameMultiToken);
 
         Files.copy(ChikkarTest.class.getResourceAsStream("/" + nameTest), pathTest);
         Files.copy(ChikkarTest.class.getResourceAsStream("/" + nameOverWrite), pathTestOverWrite);
         Files.copy(ChikkarTest.class.getResourceAsStream("/" + nameDirected), pathDirected);
         Files.copy(ChikkarTest.class.getResourceAsStream("/" + nameMerge), pathMerge);
+        Files.copy(ChikkarTest.class.getResourceAsStream("/" + nameMultiToken), pathMultiToken);
 
         chikkar = new Chikkar(analyzer);
         chikkar.loadDictionary(pathTest);
@@ -92,6 +104,9 @@ public class ChikkarTest {
 
         chikkar4 = new Chikkar(analyzer);
         chikkar4.loadDictionary(pathMerge);
+
+        chikkar5 = new Chikkar(analyzer);
+        chikkar5.loadDictionary(pathMultiToken);
     }
 
     @Test
@@ -304,6 +319,165 @@ public class ChikkarTest {
         assertEquals(expectList, rtn);
     }
 
+    @Test
+    public void testGetSynonymWeights() throws IOException {
+        String name = "synonymWeighted.txt";
+        Path path = Paths.get(tempFolder.getRoot().getAbsolutePath(), name);
+        Files.copy(ChikkarTest.class.getResourceAsStream("/" + name), path);
+        Chikkar weighted = new Chikkar(analyzer);
+        weighted.enableWeights();
+        weighted.loadDictionary(path);
+
+        assertEquals(Arrays.asList("W1", "W2", "W3"), sorted(weighted.get("W1")));
+        Map<String, Float> weights = synonymWeights(weighted, "W1");
+        assertEquals(2, weights.size());
+        assertEquals(0.5f, weights.get("W2"), 0.0f);
+        assertEquals(2.0f, weights.get("W3"), 0.0f);
+
+        weights = synonymWeights(weighted, "W2");
+        assertEquals(RelationManager.DEFAULT_WEIGHT, weights.get("W1"), 0.0f);
+        assertEquals(2.0f, weights.get("W3"), 0.0f);
+
+        weights = synonymWeights(weighted, "W4");
+        assertEquals(0.25f, weights.get("W5"), 0.0f);
+        assertEquals(RelationManager.DEFAULT_WEIGHT, weights.get("W6"), 0.0f);
+
+        // a suffix which is not a number is a part of the word
+        assertEquals(Arrays.asList("W7", "W^x"), sorted(weighted.get("W7")));
+        assertEquals(0, weighted.getSynonymWeights("unknown").length);
+    }
+
+    @Test
+    public void testLiteralWeightSeparator() throws IOException {
+        Path path = tempFolder.newFile("literalWeightSeparator.txt").toPath();
+        Files.write(path, Arrays.asList("L1,L2^0.5,L3^2", "L4 => L5^0.25"));
+        Chikkar unweighted = new Chikkar(analyzer);
+        unweighted.loadDictionary(path);
+
+        // without weights, a numeric suffix is a part of the word too
+        assertEquals(Arrays.asList("L1", "L2^0.5", "L3^2"), sorted(unweighted.get("L1")));
+        assertEquals(Arrays.asList("L5^0.25"), unweighted.get("L4"));
+        assertTrue(unweighted.get("L2").isEmpty());
+        for (float weight : unweighted.getSynonymWeights("L1")) {
+            assertEquals(RelationManager.DEFAULT_WEIGHT, weight, 0.0f);
+        }
+        assertEquals(Arrays.asList("L1", "L2^0.5", "L3^2"), DictionaryManager.sampleWords(path, 3, false));
+        assertEquals(Arrays.asList("L1", "L2", "L3"), DictionaryManager.sampleWords(path, 3, true));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEnableWeightsAfterLoading() throws IOException {
+        chikkar.enableWeights();
+    }
+
+    @Test
+    public void testReloadDictionary() throws IOException {
+        Path first = tempFolder.newFile("reloadFirst.txt").toPath();
+        Path second = tempFolder.newFile("reloadSecond.txt").toPath();
+        Files.write(first, Arrays.asList("A,B,C", "A,D", "X => Y, Z", "P,Q"));
+        Files.write(second, Arrays.asList("AA => CC, DD", "Q,R"));
+
+        Chikkar incremental = new Chikkar(analyzer);
+        incremental.enableIncrementalReload();
+        assertEquals(4, incremental.reloadDictionary(first, analyzer));
+        assertEquals(2, incremental.reloadDictionary(second, analyzer));
+        assertEquals(Arrays.asList(first, second), incremental.getDictionaryPaths());
+
+        // remove a line, add one, and swap two lines
+        Files.write(first, Arrays.asList("A,D", "A,B,C", "X => Y, W", "P,Q"));
+        assertEquals(1, incremental.reloadDictionary(first, analyzer));
+        assertEquals(0, incremental.reloadDictionary(second, analyzer));
+
+        Chikkar expected = new Chikkar(analyzer);
+        expected.loadDictionary(first);
+        expected.loadDictionary(second);
+        for (String word : Arrays.asList("A", "B", "C", "D", "X", "Y", "Z", "W", "P", "Q", "R", "AA")) {
+            assertEquals(word, expected.get(word), incremental.get(word));
+        }
+
+        // a removed dictionary is read as empty
+        Files.delete(second);
+        assertEquals(0, incremental.reloadDictionary(second, analyzer));
+        assertEquals(Arrays.asList("P", "Q"), sorted(incremental.get("Q")));
+        assertTrue(incremental.get("AA").isEmpty());
+    }
+
+    @Test
+    public void testPreTokenized() throws IOException {
+        Path path = tempFolder.newFile("preTokenized.txt").toPath();
+        Files.write(path, Arrays.asList("曖昧,不 明確^0.5", "要約 => 概  要"), StandardCharsets.UTF_8);
+
+        Chikkar preTokenized = new Chikkar(EntryAnalyzer.preTokenized(null));
+        preTokenized.enableWeights();
+        preTokenized.loadDictionary(path);
+        assertEquals(Arrays.asList("不\u0000明確", "曖昧"), sorted(preTokenized.get("曖昧")));
+        assertEquals(Arrays.asList("概\u0000要"), preTokenized.get("要約"));
+        assertEquals(0.5f, synonymWeights(preTokenized, "曖昧").get("不\u0000明確"), 0.0f);
+
+        EntryAnalyzer slash = EntryAnalyzer.preTokenized("/");
+        assertEquals(Arrays.asList("不 明確"), slash.analyze("不 明確"));
+        assertEquals(Arrays.asList("不\u0000明確"), slash.analyze("不/明確/"));
+
+        // the whitespace tokenizer of the test analyzer agrees with whitespace separated tokens
+        assertTrue(Chikkar.compareAnalysis(path, EntryAnalyzer.of(analyzer), EntryAnalyzer.preTokenized(null), 10,
+                true).isEmpty());
+        assertEquals(Arrays.asList("不 明確: [不 明確] != [不|明確]", "概  要: [概  要] != [概|要]"),
+                Chikkar.compareAnalysis(path, EntryAnalyzer.of(null), EntryAnalyzer.preTokenized(null), 10, true));
+        assertEquals(1, Chikkar.compareAnalysis(path, EntryAnalyzer.of(null), EntryAnalyzer.preTokenized(null), 2,
+                true).size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReloadDictionaryWithoutIncrementalReload() throws IOException {
+        chikkar.reloadDictionary(Paths.get(tempFolder.getRoot().getAbsolutePath(), "test.txt"), analyzer);
+    }
+
+    private static List<String> sorted(List<String> words) {
+        Collections.sort(words);
+        return words;
+    }
+
+    private static Map<String, Float> synonymWeights(Chikkar chikkar, String query) {
+        int[] ids = chikkar.getSynonymIds(query);
+        float[] weights = chikkar.getSynonymWeights(query);
+        assertEquals(ids.length, weights.length);
+        Map<String, Float> rtn = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            rtn.put(chikkar.getWord(ids[i]).toString(), weights[i]);
+        }
+        return rtn;
+    }
+
+    @Test
+    public void testMatchListOfMorpheme() {
+        String separator = String.valueOf(ChikkarSynonymMap.WORD_SEPARATOR);
+        List<Morpheme> morphemeList = new ArrayList<>();
+        for (String surface : Arrays.asList("内閣", "総理", "大臣", "が", "不", "明確", "総理")) {
+            Morpheme morpheme = mock(Morpheme.class);
+            when(morpheme.surface()).thenReturn(surface);
+            morphemeList.add(morpheme);
+        }
+
+        List<SynonymScanner.Match> rtn = chikkar5.match(morphemeList);
+        assertEquals(3, rtn.size());
+
+        assertEquals(0, rtn.get(0).getStart());
+        assertEquals(3, rtn.get(0).getEnd());
+        assertEquals(String.join(separator, "内閣", "総理", "大臣"), rtn.get(0).getWord());
+
+        assertEquals(4, rtn.get(1).getStart());
+        assertEquals(6, rtn.get(1).getEnd());
+        assertEquals(String.join(separator, "不", "明確"), rtn.get(1).getWord());
+
+        assertEquals(6, rtn.get(2).getStart());
+        assertEquals(7, rtn.get(2).getEnd());
+        assertEquals("総理", rtn.get(2).getWord());
+
+        rtn = chikkar5.match(morphemeList, 1, 3, Morpheme::surface);
+        assertEquals(1, rtn.size());
+        assertEquals(String.join(separator, "総理", "大臣"), rtn.get(0).getWord());
+    }
+
     @Test
     public void testFindWithPosition() {
         List<String> rtn = chikkar4.find("概略のあいまい", 3, 7);
@@ -329,6 +503,127 @@ public class ChikkarTest {
         assertEquals(expectList, rtn);
     }
 
+    @Test
+    public void testGetSynonymIds() {
+        for (String query : Arrays.asList("A", "B", "AA", "EE", "non-exist")) {
+            List<Integer> expected = chikkar.getSynonymId(query);
+
+            int[] ids = chikkar.getSynonymIds(query);
+            assertEquals(expected.size(), ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                assertEquals(expected.get(i).intValue(), ids[i]);
+            }
+
+            List<Integer> consumed = new ArrayList<>();
+            assertEquals(expected.size(), chikkar.forEachSynonymId(new StringBuilder(query), consumed::add));
+            assertEquals(expected, consumed);
+        }
+    }
+
+    @Test
+    public void testForEachRelatedId() {
+        for (String query : Arrays.asList("A", "D", "AA", "FF", "non-exist")) {
+            List<String> words = new ArrayList<>();
+            int count = chikkar3.forEachRelatedId(query, id -> words.add(chikkar3.getWord(id).toString()));
+            assertEquals(chikkar3.get(query), words);
+            assertEquals(words.size(), count);
+        }
+    }
+
+    @Test
+    public void testGetSortedRelationKeys() {
+        for (Chikkar c : Arrays.asList(chikkar, chikkar3, chikkar4)) {
+            List<String> expected = c.getSortedKeys().stream().filter(key -> !c.getSynonymId(key).isEmpty())
+                    .collect(Collectors.toList());
+            List<String> keys = c.getSortedRelationKeys();
+            assertTrue(keys.containsAll(expected));
+            for (String key : keys) {
+                assertTrue(c.getSortedKeys().contains(key));
+            }
+            assertEquals(keys.stream().distinct().sorted(ChikkarSynonymMap.CODE_POINT_ORDER)
+                    .collect(Collectors.toList()), keys);
+        }
+    }
+
+    @Test
+    public void testCodePointOrder() {
+        // U+20B9F is after U+FF21 in code point order, but before it in UTF-16 order
+        List<String> words = Arrays.asList("\uFF21", "\uD842\uDF9F", "A\u0000B", "A", "\u3042", "AB");
+        List<String> expected = Arrays.asList("A", "A\u0000B", "AB", "\u3042", "\uFF21", "\uD842\uDF9F");
+        List<String> sorted = new ArrayList<>(words);
+        sorted.sort(ChikkarSynonymMap.CODE_POINT_ORDER);
+        assertEquals(expected, sorted);
+    }
+
+    @Test
+    public void testGetAll() {
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            queries.add(Arrays.asList("A", "B", "C", "AA", "DD", "EE", "non-exist").get(i % 7));
+        }
+        List<List<String>> expected = queries.stream().map(chikkar3::get).collect(Collectors.toList());
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            assertEquals(expected, chikkar3.getAll(queries, pool));
+            assertEquals(expected, chikkar3.getAll(queries.stream(), pool));
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(expected, chikkar3.getAll(queries));
+        assertEquals(Collections.emptyList(), chikkar3.getAll(Collections.emptyList()));
+    }
+
+    @Test
+    public void testFindAll() {
+        List<String> inputs = Arrays.asList("概略のあいまい", "曖昧", "あいまいな概略", "概");
+        List<List<String>> expected = inputs.stream().map(chikkar4::find).collect(Collectors.toList());
+        assertEquals(expected, chikkar4.findAll(inputs));
+    }
+
+    @Test
+    public void testScan() {
+        String text = "AAABC";
+        List<String> found = chikkar.scan(text).stream()
+                .map(m -> m.getStart() + "-" + m.getEnd() + ":" + m.getWord()).collect(Collectors.toList());
+        assertEquals(Arrays.asList("0-1:A", "0-2:AA", "1-2:A", "1-3:AA", "2-3:A", "3-4:B", "4-5:C"), found);
+
+        found = chikkar.scanLongest(text).stream().map(m -> m.getStart() + "-" + m.getEnd() + ":" + m.getWord())
+                .collect(Collectors.toList());
+        assertEquals(Arrays.asList("0-2:AA", "2-3:A", "3-4:B", "4-5:C"), found);
+
+        for (SynonymScanner.Match m : chikkar.scan(text)) {
+            List<Integer> ids = new ArrayList<>();
+            for (int id : m.getSynonymIds()) {
+                ids.add(id);
+            }
+            assertEquals(chikkar.getSynonymId(m.getWord()), ids);
+        }
+    }
+
+    @Test
+    public void testScanLongestWithPosition() {
+        List<SynonymScanner.Match> found = chikkar4.scanLongest("概略のあいまい");
+        assertEquals(2, found.size());
+        assertEquals("概略", found.get(0).getWord());
+        assertEquals(0, found.get(0).getStart());
+        assertEquals(2, found.get(0).getEnd());
+        assertEquals("あいまい", found.get(1).getWord());
+        assertEquals(3, found.get(1).getStart());
+        assertEquals(7, found.get(1).getEnd());
+
+        assertTrue(chikkar4.scanLongest("首相").isEmpty());
+    }
+
+    @Test
+    public void testSudachiPunctuation() {
+        assertTrue(SudachiEntryAnalyzer.isPunctuation("、"));
+        assertTrue(SudachiEntryAnalyzer.isPunctuation("（・）"));
+        assertTrue(SudachiEntryAnalyzer.isPunctuation("\u3000"));
+        assertFalse(SudachiEntryAnalyzer.isPunctuation("あ、"));
+        assertFalse(SudachiEntryAnalyzer.isPunctuation("12"));
+    }
+
     static class WhitespaceTokenizerFactory implements TokenizerFactory {
         @Override
         public String name() {